@@ -0,0 +1,160 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import org.apache.commons.io.FileUtils;
+import org.kontalk.crypto.BenchmarkKeys;
+import org.kontalk.util.TrustUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for {@link DownloadClient} against a {@link LocalHTTPSServer},
+ * using the client certificate setup of {@link TrustUtils}.
+ * One operation is a batch of parallel downloads of the payload, so the
+ * throughput in MB/s is ops/s * parallel * payloadSize. Every download is
+ * checked, a wrong result fails the benchmark. Run with "-prof gc" to get the
+ * allocation per download batch.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadClientBenchmark {
+
+    @Param({"100000", "10000000"})
+    public int payloadSize;
+
+    @Param({"1", "4", "16"})
+    public int parallel;
+
+    @Param({"NORMAL", "UNKNOWN_LENGTH", "NO_DISPOSITION", "REDIRECT", "SLOW", "BROKEN"})
+    public LocalHTTPSServer.Scenario scenario;
+
+    private LocalHTTPSServer mServer;
+    private DownloadClient mClient;
+    private ExecutorService mExecutor;
+    private File mBaseDir;
+
+    /** Unique file names, partial files are named by URL. */
+    private final AtomicLong mCounter = new AtomicLong();
+
+    private final DownloadClient.ProgressListener mListener = new DownloadClient.ProgressListener() {
+        @Override
+        public void updateProgress(int percent, long rate, long eta) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkKeys.setup();
+
+        byte[] data = new byte[payloadSize];
+        new Random(42).nextBytes(data);
+        mServer = new LocalHTTPSServer(data);
+        mServer.start();
+
+        BenchmarkKeys keys = BenchmarkKeys.generate("client");
+        // the server certificate is self-signed
+        SSLContext sslContext = TrustUtils.getCustomSSLContext(keys.personalKey, false);
+        mClient = new DownloadClient(sslContext, parallel, parallel, 0);
+
+        mExecutor = Executors.newFixedThreadPool(parallel);
+        mBaseDir = Files.createTempDirectory("kontalk-benchmark").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mExecutor.shutdownNow();
+        mClient.close();
+        mServer.stop();
+        FileUtils.deleteDirectory(mBaseDir);
+        if (mServer.getClientCertificates() == 0)
+            throw new IllegalStateException("no client certificate received");
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        List<Future<Long>> futures = new ArrayList<>(parallel);
+        for (int i = 0; i < parallel; i++) {
+            final String url = mServer.getURL(scenario, "file" + mCounter.incrementAndGet());
+            futures.add(mExecutor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return DownloadClientBenchmark.this.downloadOne(url);
+                }
+            }));
+        }
+        long bytes = 0;
+        for (Future<Long> future : futures)
+            bytes += future.get();
+        return bytes;
+    }
+
+    private long downloadOne(String url) throws IOException {
+        String path = mClient.download(url,
+                mBaseDir,
+                -1,
+                DownloadClient.Priority.NORMAL,
+                mListener,
+                Optional.<DownloadClient.StreamHandler>empty());
+        if (!scenario.succeeds()) {
+            if (!path.isEmpty())
+                throw new IllegalStateException("download should fail: "+url);
+            return 0;
+        }
+        if (path.isEmpty())
+            throw new IllegalStateException("download failed: "+url);
+        File file = new File(path);
+        long length = file.length();
+        if (length != payloadSize)
+            throw new IllegalStateException("wrong length: "+length);
+        Files.delete(file.toPath());
+        return length;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.kontalk.crypto.BenchmarkKeys;
+
+/**
+ * Embedded HTTPS server standing in for the Kontalk file server.
+ * Serves one payload for every URL "/[scenario]/[name]", requires a client
+ * certificate (like the bridge certificate of an account) and supports range
+ * requests. The scenario of a URL decides how the response is broken.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class LocalHTTPSServer {
+
+    /** How the server responds. */
+    public enum Scenario {
+        /** Content-Disposition and Content-Length headers. */
+        NORMAL,
+        /** No length, chunked transfer encoding. */
+        UNKNOWN_LENGTH,
+        /** No Content-Disposition header, the download must fail. */
+        NO_DISPOSITION,
+        /** Redirect to the normal response. */
+        REDIRECT,
+        /** Data is sent with a limited rate. */
+        SLOW,
+        /** The connection breaks in the middle unless a range is requested. */
+        BROKEN;
+
+        boolean succeeds() {
+            return this != NO_DISPOSITION;
+        }
+    }
+
+    private final static String DN = "CN=127.0.0.1";
+    private final static int CHUNK_SIZE = 1 << 16;
+    /** Rate of the slow scenario in bytes per second. */
+    private final static int SLOW_RATE = 1 << 20;
+    /** Signature schemes for handshakes, without RSA-PSS. */
+    private final static String SIGNATURE_SCHEMES =
+            "rsa_pkcs1_sha256,rsa_pkcs1_sha384,rsa_pkcs1_sha512";
+
+    static {
+        // the RSA-PSS signer of the registered Bouncy Castle provider takes
+        // precedence in JSSE and fails without a random source
+        System.setProperty("jdk.tls.server.SignatureSchemes", SIGNATURE_SCHEMES);
+        System.setProperty("jdk.tls.client.SignatureSchemes", SIGNATURE_SCHEMES);
+    }
+
+    private final byte[] mData;
+    private final HttpsServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger mClientCertificates = new AtomicInteger();
+
+    LocalHTTPSServer(byte[] data) throws GeneralSecurityException, IOException {
+        mData = data;
+
+        KeyPair keyPair = BenchmarkKeys.generateKeyPair();
+        X509Certificate cert = BenchmarkKeys.selfSignedCertificate(keyPair, DN);
+        KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keystore.load(null, null);
+        keystore.setKeyEntry("server",
+                keyPair.getPrivate(),
+                new char[0],
+                new Certificate[] { cert });
+        KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmFactory.init(keystore, new char[0]);
+        SSLContext ctx = SSLContext.getInstance("TLSv1.2");
+        ctx.init(kmFactory.getKeyManagers(),
+                new TrustManager[] { new ClientTrustManager() },
+                null);
+
+        mServer = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setHttpsConfigurator(new HttpsConfigurator(ctx) {
+            @Override
+            public void configure(HttpsParameters params) {
+                SSLParameters sslParams = this.getSSLContext().getDefaultSSLParameters();
+                sslParams.setNeedClientAuth(true);
+                params.setSSLParameters(sslParams);
+            }
+        });
+        mServer.createContext("/", new Handler());
+        mServer.setExecutor(mExecutor);
+    }
+
+    void start() {
+        mServer.start();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    String getURL(Scenario scenario, String name) {
+        return "https://127.0.0.1:" + mServer.getAddress().getPort() + "/" +
+                scenario.name().toLowerCase() + "/" + name;
+    }
+
+    /** Number of verified client certificates. */
+    int getClientCertificates() {
+        return mClientCertificates.get();
+    }
+
+    private class Handler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                this.respond(exchange);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void respond(HttpExchange exchange) throws IOException {
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            Scenario scenario;
+            try {
+                scenario = Scenario.valueOf(path[1].toUpperCase());
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            String name = path.length > 2 ? path[2] : "file";
+
+            Headers headers = exchange.getResponseHeaders();
+            if (scenario == Scenario.REDIRECT) {
+                headers.set("Location", "/" + Scenario.NORMAL.name().toLowerCase() + "/" + name);
+                exchange.sendResponseHeaders(302, -1);
+                return;
+            }
+            if (scenario != Scenario.NO_DISPOSITION)
+                headers.set("Content-Disposition", "attachment; filename=\"" + name + ".bin\"");
+            headers.set("ETag", "\"payload\"");
+
+            int offset = 0;
+            int code = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=") && range.endsWith("-")) {
+                offset = Integer.parseInt(range.substring(6, range.length() - 1));
+                if (offset >= mData.length) {
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                headers.set("Content-Range",
+                        "bytes " + offset + "-" + (mData.length - 1) + "/" + mData.length);
+                code = 206;
+            }
+            // zero: chunked encoding
+            long length = scenario == Scenario.UNKNOWN_LENGTH ? 0 : mData.length - offset;
+            exchange.sendResponseHeaders(code, length);
+
+            int end = scenario == Scenario.BROKEN && range == null ?
+                    mData.length / 2 :
+                    mData.length;
+            OutputStream out = exchange.getResponseBody();
+            for (int pos = offset; pos < end; pos += CHUNK_SIZE) {
+                int len = Math.min(CHUNK_SIZE, end - pos);
+                out.write(mData, pos, len);
+                if (scenario == Scenario.SLOW) {
+                    out.flush();
+                    sleep(len * 1000L / SLOW_RATE);
+                }
+            }
+            // closing the exchange without all data breaks the connection
+            if (end == mData.length)
+                out.close();
+        }
+    }
+
+    /**
+     * Accepts every client certificate; the bridge certificate is self-signed
+     * and only counted here.
+     */
+    private class ClientTrustManager implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            if (chain == null || chain.length == 0)
+                throw new CertificateException("no client certificate");
+            chain[0].checkValidity();
+            mClientCertificates.incrementAndGet();
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            throw new CertificateException("server certificates are not trusted");
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("interrupted while sending");
+        }
+    }
+}
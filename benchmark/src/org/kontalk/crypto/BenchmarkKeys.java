@@ -0,0 +1,149 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+/**
+ * Throwaway key pairs for benchmarking, built like a Kontalk account key: a
+ * master key for signing and a sub key for encryption, and a self-signed
+ * bridge certificate for the signing key.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class BenchmarkKeys {
+
+    private final static int KEY_SIZE = 2048;
+    private final static long CERT_VALIDITY = TimeUnit.DAYS.toMillis(1);
+
+    /** Private key of this entity. */
+    public final PersonalKey personalKey;
+    /** Public key ring data, as received from the server. */
+    final byte[] publicKeyRing;
+    /** Public key, as used by the coder for other users. */
+    final PGPUtils.PGPCoderKey coderKey;
+
+    private BenchmarkKeys(PersonalKey personalKey, byte[] publicKeyRing) {
+        this.personalKey = personalKey;
+        this.publicKeyRing = publicKeyRing;
+        this.coderKey = PGPUtils.readPublicKey(publicKeyRing).get();
+    }
+
+    public static void setup() {
+        PGPUtils.registerProvider();
+        // coder is logging every step
+        Logger.getLogger("").setLevel(Level.WARNING);
+    }
+
+    public static BenchmarkKeys generate(String name) throws GeneralSecurityException, PGPException {
+        String uid = name + " <" + name + "@benchmark.kontalk.net>";
+
+        KeyPair signJavaKp = generateKeyPair();
+        Date now = new Date();
+        PGPKeyPair signKp = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, signJavaKp, now);
+        PGPKeyPair encryptKp = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, generateKeyPair(), now);
+
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
+                .build().get(HashAlgorithmTags.SHA1);
+        PGPKeyRingGenerator ringGen = new PGPKeyRingGenerator(
+                PGPSignature.POSITIVE_CERTIFICATION,
+                signKp,
+                uid,
+                sha1Calc,
+                null,
+                null,
+                new JcaPGPContentSignerBuilder(signKp.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, sha1Calc)
+                        .setProvider(PGPUtils.PROVIDER)
+                        .build(name.toCharArray()));
+        ringGen.addSubKey(encryptKp);
+        PGPPublicKeyRing pubRing = ringGen.generatePublicKeyRing();
+
+        // use the certified public keys (with user ID) from the ring
+        PGPPublicKey signPub = null;
+        PGPPublicKey encryptPub = null;
+        Iterator<?> it = pubRing.getPublicKeys();
+        while (it.hasNext()) {
+            PGPPublicKey key = (PGPPublicKey) it.next();
+            if (key.isMasterKey())
+                signPub = key;
+            else
+                encryptPub = key;
+        }
+
+        PersonalKey personalKey = new PersonalKey(
+                new PGPKeyPair(signPub, signKp.getPrivateKey()),
+                new PGPKeyPair(encryptPub, encryptKp.getPrivateKey()),
+                selfSignedCertificate(signJavaKp, "CN=" + name));
+        try {
+            return new BenchmarkKeys(personalKey, pubRing.getEncoded());
+        } catch (java.io.IOException ex) {
+            throw new PGPException("can't encode public key ring", ex);
+        }
+    }
+
+    public static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator kpGen = KeyPairGenerator.getInstance("RSA", PGPUtils.PROVIDER);
+        kpGen.initialize(KEY_SIZE);
+        return kpGen.generateKeyPair();
+    }
+
+    /**
+     * Create a self-signed certificate, valid for one day.
+     * @param dn distinguished name of subject and issuer
+     */
+    @SuppressWarnings("deprecation")
+    public static X509Certificate selfSignedCertificate(KeyPair keyPair, String dn)
+            throws GeneralSecurityException {
+        X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
+        long now = System.currentTimeMillis();
+        certGen.setSerialNumber(BigInteger.valueOf(now));
+        certGen.setIssuerDN(new X500Principal(dn));
+        certGen.setSubjectDN(new X500Principal(dn));
+        certGen.setNotBefore(new Date(now - CERT_VALIDITY));
+        certGen.setNotAfter(new Date(now + CERT_VALIDITY));
+        certGen.setPublicKey(keyPair.getPublic());
+        certGen.setSignatureAlgorithm("SHA256WithRSAEncryption");
+        return certGen.generate(keyPair.getPrivate(), PGPUtils.PROVIDER);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.RandomStringUtils;
+import org.kontalk.util.CPIMMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the steps of {@link Coder}: CPIM wrapping, encryption,
+ * decryption/verification, CPIM parsing and the streaming decryption of
+ * attachment files, for different payload sizes and crypto backends.
+ * Run with "-prof gc" to get the allocation rate.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoderBenchmark {
+
+    @Param({"100", "10000", "1000000", "50000000"})
+    public int payloadSize;
+
+    @Param({"BC", "JCA"})
+    public CoderBackend backend;
+
+    private BenchmarkKeys mSender;
+    private BenchmarkKeys mReceiver;
+
+    private byte[] mPlainData;
+    private byte[] mEncryptedData;
+    private String mText;
+    private String mCPIMText;
+    /** Encrypted data as downloaded attachment file. */
+    private File mEncryptedFile;
+    private File mDecryptedFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkKeys.setup();
+        Coder.setBackend(backend);
+
+        mSender = BenchmarkKeys.generate("sender");
+        mReceiver = BenchmarkKeys.generate("receiver");
+
+        mPlainData = new byte[payloadSize];
+        new Random(42).nextBytes(mPlainData);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payloadSize + 1024);
+        EnumSet<Coder.Error> errors = Coder.encryptAndSign(
+                new ByteArrayInputStream(mPlainData),
+                out,
+                mSender.personalKey,
+                mReceiver.coderKey.encryptKey);
+        if (!errors.isEmpty())
+            throw new IllegalStateException("can't encrypt: "+errors);
+        mEncryptedData = out.toByteArray();
+
+        mText = RandomStringUtils.randomAlphanumeric(payloadSize);
+        mCPIMText = new String(this.wrapCPIM(), StandardCharsets.UTF_8);
+
+        mEncryptedFile = File.createTempFile("benchmark", ".enc");
+        Files.write(mEncryptedFile.toPath(), mEncryptedData);
+        mDecryptedFile = File.createTempFile("benchmark", ".dec");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mEncryptedFile.delete();
+        mDecryptedFile.delete();
+    }
+
+    /** Wrapping of the message text before encryption. */
+    @Benchmark
+    public byte[] wrapCPIM() {
+        CPIMMessage cpim = new CPIMMessage(mSender.personalKey.getUserId(),
+                mReceiver.coderKey.userID + "; ",
+                new Date(),
+                "text/plain",
+                mText);
+        return cpim.toByteArray();
+    }
+
+    @Benchmark
+    public int encrypt() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payloadSize + 1024);
+        Coder.encryptAndSign(new ByteArrayInputStream(mPlainData),
+                out,
+                mSender.personalKey,
+                mReceiver.coderKey.encryptKey);
+        return out.size();
+    }
+
+    @Benchmark
+    public int decryptAndVerify() {
+        Coder.DecryptionResult result = Coder.decryptAndVerify(
+                new ByteArrayInputStream(mEncryptedData),
+                mReceiver.personalKey,
+                mSender.coderKey.encryptKey);
+        if (!result.errors.isEmpty())
+            throw new IllegalStateException("can't decrypt: "+result.errors);
+        return result.decryptedStream.get().size();
+    }
+
+    @Benchmark
+    public Object parseCPIM() {
+        return Coder.parseCPIM(mCPIMText,
+                mReceiver.coderKey.userID + "; ",
+                mSender.personalKey.getUserId()).content;
+    }
+
+    /**
+     * Decryption of an attachment file like in
+     * {@link Coder#processAttachment}, streamed from file to file.
+     */
+    @Benchmark
+    public long decryptAttachment() throws IOException {
+        Coder.DecryptionResult result;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(mEncryptedFile));
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(mDecryptedFile))) {
+            result = Coder.decryptAndVerify(in,
+                    out,
+                    mReceiver.personalKey,
+                    mSender.coderKey.encryptKey);
+        }
+        if (!result.errors.isEmpty())
+            throw new IllegalStateException("can't decrypt: "+result.errors);
+        return mDecryptedFile.length();
+    }
+}
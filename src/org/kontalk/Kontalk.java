@@ -32,11 +32,13 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 import org.apache.commons.lang.SystemUtils;
+import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PGPUtils;
 import org.kontalk.model.MessageList;
 import org.kontalk.model.ThreadList;
 import org.kontalk.model.UserList;
 import org.kontalk.system.ControlCenter;
+import org.kontalk.system.Downloader;
 import org.kontalk.util.CryptoUtils;
 import org.kontalk.view.View;
 
@@ -132,10 +134,13 @@ public final class Kontalk {
             return; // never reached
         }
 
+        Coder.initBackend();
+
         // order matters!
         UserList.getInstance().load();
         ThreadList.getInstance().load();
         MessageList.getInstance().load();
+        Downloader.getInstance().resumeDownloads();
 
         view.init();
 
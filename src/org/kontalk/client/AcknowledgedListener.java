@@ -48,8 +48,6 @@ public final class AcknowledgedListener implements PacketListener {
             return;
         }
 
-        LOGGER.info("got acknowledgement for message: "+p.toXML());
-
         if (DeliveryReceipt.from(p) != null) {
             // this is an ack for a 'received' message send by
             // KonMessageListener (XEP-0184), nothing must be done
@@ -0,0 +1,124 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.kontalk.client.DownloadClient.Priority;
+
+/**
+ * Limits the transfer rate of all downloads to a global budget.
+ * Every priority class has a token bucket. The budget is shared by the
+ * classes with running downloads in proportion to their weights, a class
+ * alone gets the whole budget.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+final class BandwidthLimiter {
+
+    /** Maximum burst, in seconds of the class rate. */
+    private final static double BURST_SECONDS = 0.5;
+
+    /** Budget in bytes per second, no limit if zero. */
+    private final long mRate;
+
+    /** Number of running downloads for each class. */
+    private final int[] mActive = new int[Priority.values().length];
+    /** Available bytes for each class, negative if in debt. */
+    private final double[] mTokens = new double[Priority.values().length];
+    private final long[] mLastRefill = new long[Priority.values().length];
+
+    BandwidthLimiter(long rate) {
+        mRate = rate;
+    }
+
+    synchronized void register(Priority priority) {
+        int i = priority.ordinal();
+        if (mActive[i]++ == 0) {
+            mTokens[i] = 0;
+            mLastRefill[i] = System.nanoTime();
+        }
+        // the rates changed
+        this.notifyAll();
+    }
+
+    synchronized void unregister(Priority priority) {
+        mActive[priority.ordinal()]--;
+        this.notifyAll();
+    }
+
+    /**
+     * Return an input stream that is limited to the rate of a class.
+     */
+    InputStream limit(InputStream in, final Priority priority) {
+        if (mRate <= 0)
+            return in;
+        return new ProxyInputStream(in) {
+            @Override
+            protected void afterRead(int n) throws IOException {
+                if (n <= 0)
+                    return;
+                try {
+                    BandwidthLimiter.this.consume(priority, n);
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("interrupted while limiting");
+                }
+            }
+        };
+    }
+
+    /**
+     * Take bytes from the bucket of a class, waiting while the bucket is
+     * empty.
+     */
+    private synchronized void consume(Priority priority, int bytes)
+            throws InterruptedException {
+        int i = priority.ordinal();
+        while (true) {
+            double rate = this.rate(priority);
+            this.refill(i, rate);
+            if (mTokens[i] > 0) {
+                // debt is paid back by waiting next time
+                mTokens[i] -= bytes;
+                return;
+            }
+            long waitMillis = (long) Math.ceil(-mTokens[i] / rate * 1000);
+            this.wait(Math.max(waitMillis, 1));
+        }
+    }
+
+    private void refill(int i, double rate) {
+        long now = System.nanoTime();
+        double tokens = mTokens[i] + (now - mLastRefill[i]) / 1e9 * rate;
+        mTokens[i] = Math.min(tokens, rate * BURST_SECONDS);
+        mLastRefill[i] = now;
+    }
+
+    /** Current rate of a class in bytes per second. */
+    private double rate(Priority priority) {
+        int weights = 0;
+        for (Priority p : Priority.values()) {
+            if (mActive[p.ordinal()] > 0 || p == priority)
+                weights += p.weight;
+        }
+        return mRate * priority.weight / (double) weights;
+    }
+}
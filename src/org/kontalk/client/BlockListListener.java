@@ -44,7 +44,6 @@ final class BlockListListener implements PacketListener {
     @Override
     public void processPacket(Packet packet) {
         BlockingCommand p = (BlockingCommand) packet;
-        LOGGER.info("got blocklist response: "+p.toXML());
 
         if (p.getItems() != null) {
             mControl.setBlockedUser(p.getItems());
@@ -51,8 +51,6 @@ final class BlockResponseListener implements PacketListener {
     @Override
     public void processPacket(Packet packet)
             throws SmackException.NotConnectedException {
-        LOGGER.info("got block response: "+packet.toXML());
-
         mConn.removePacketListener(this);
 
         if (!(packet instanceof IQ)) {
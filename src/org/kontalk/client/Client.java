@@ -19,12 +19,17 @@
 package org.kontalk.client;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
 import org.bouncycastle.openpgp.PGPException;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.RosterListener;
@@ -40,17 +45,16 @@ import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.RosterPacket;
+import org.jivesoftware.smack.provider.ProviderManager;
 import org.jivesoftware.smack.tcp.sm.StreamManagementException;
-import org.jivesoftware.smackx.chatstates.ChatState;
-import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
-import org.jivesoftware.smackx.receipts.DeliveryReceiptRequest;
+import org.jivesoftware.smackx.disco.ServiceDiscoveryManager;
 import org.kontalk.system.KonConf;
 import org.kontalk.misc.KonException;
-import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.model.KonMessage.Status;
 import org.kontalk.model.OutMessage;
 import org.kontalk.system.ControlCenter;
+import org.kontalk.util.TrustUtils;
 
 /**
  * Network client for an XMPP Kontalk Server.
@@ -68,7 +72,24 @@ public final class Client implements PacketListener, Runnable {
     private static enum Command {CONNECT, DISCONNECT};
 
     private final ControlCenter mControl;
+    private final MessageSender mSender;
+    private final ReconnectionManager mReconnect;
+    private final InboundPipeline mPipeline = new InboundPipeline();
+    private final KeyRequester mKeyRequester = new KeyRequester(this);
+    private final ReceiptBatcher mReceipts = new ReceiptBatcher(this);
+    private final PresenceBuffer mPresences;
+    private final KeepAlive mKeepAlive = new KeepAlive(this);
     private KonConnection mConn = null;
+    /** Key of the last connection, used for reconnecting. */
+    private PersonalKey mKey = null;
+
+    /**
+     * XMPP IDs of messages sent with the current connection and not
+     * acknowledged yet. Stream management resends them after reconnecting,
+     * in the resumed stream or a new one.
+     */
+    private final Set<String> mStreamIDs =
+            Collections.synchronizedSet(new HashSet<String>());
 
     // Limited connection flag.
     //protected boolean mLimited;
@@ -77,13 +98,38 @@ public final class Client implements PacketListener, Runnable {
         mControl = control;
         //mLimited = limited;
 
+        mPresences = new PresenceBuffer(control);
+        mSender = new MessageSender(this, control);
+        new Thread(mSender).start();
+
+        mReconnect = new ReconnectionManager(this, control);
+
+        ProviderManager.addIQProvider(HTTPFileUpload.Slot.ELEMENT,
+                HTTPFileUpload.NAMESPACE,
+                new HTTPFileUpload.SlotProvider());
+
         // enable debug window
         //SmackConfiguration.DEBUG_ENABLED = true;
     }
 
     public void connect(PersonalKey key) {
-        this.disconnect();
+        mReconnect.cancel();
+        this.connectWithKey(key);
+    }
+
+    /** Connect again after the connection was lost. */
+    void reconnect() {
+        if (mKey == null) {
+            LOGGER.warning("can't reconnect, never connected");
+            return;
+        }
+        this.connectWithKey(mKey);
+    }
+
+    private void connectWithKey(PersonalKey key) {
+        this.closeConnection();
         mControl.setStatus(ControlCenter.Status.CONNECTING);
+        mKey = key;
 
         KonConf config = KonConf.getInstance();
         // tigase: use hostname as network
@@ -95,39 +141,54 @@ public final class Client implements PacketListener, Runnable {
         boolean validateCertificate = config.getBoolean(KonConf.SERV_CERT_VALIDATION);
 
         // create connection
+        SSLContext sslContext;
         try {
-            mConn = new KonConnection(server,
-                    key.getBridgePrivateKey(),
-                    key.getBridgeCertificate(),
-                    validateCertificate);
-        } catch (PGPException ex) {
-            LOGGER.log(Level.WARNING, "can't create connection", ex);
+            sslContext = TrustUtils.getCustomSSLContext(key, validateCertificate);
+        } catch (GeneralSecurityException | IOException | PGPException ex) {
+            LOGGER.log(Level.WARNING, "can't setup SSL connection", ex);
             mControl.setStatus(ControlCenter.Status.FAILED);
             mControl.handleException(new KonException(KonException.Error.CLIENT_CONNECTION, ex));
             return;
         }
 
-        // connection listener
-        mConn.addConnectionListener(new KonConnectionListener(mControl));
+        if (mConn != null && mConn.canResume(server, sslContext)) {
+            // listeners are still registered
+            LOGGER.info("trying to resume stream");
+            Client.TASK_QUEUE.offer(new Client.Task(Client.Command.CONNECT, new ArrayList<>(0)));
+            return;
+        }
+
+        Optional<RosterCache> rosterCache = RosterCache.open(network, key.getFingerprint());
+        mConn = new KonConnection(server, sslContext, validateCertificate, rosterCache);
+        mStreamIDs.clear();
 
         // packet listeners
-        RosterListener rl = new KonRosterListener(mConn.getRoster(), this, mControl);
+        RosterListener rl = new KonRosterListener(mConn.getRoster(), this, mControl, mPresences, rosterCache);
         mConn.getRoster().addRosterListener(rl);
 
+        // connection listener, called after the one of the roster (offline
+        // presences for a lost connection are generated first)
+        mConn.addConnectionListener(new KonConnectionListener(mControl, mReconnect, mPresences));
+
         PacketFilter messageFilter = new PacketTypeFilter(Message.class);
-        mConn.addPacketListener(new KonMessageListener(this, mControl), messageFilter);
+        mConn.addPacketListener(mPipeline.wrap("message",
+                new KonMessageListener(mControl, mReceipts)), messageFilter);
 
         PacketFilter vCardFilter = new PacketTypeFilter(VCard4.class);
-        mConn.addPacketListener(new VCardListener(mControl), vCardFilter);
+        mConn.addPacketListener(mPipeline.wrap("vcard",
+                new VCardListener(mControl)), vCardFilter);
 
         PacketFilter blockingCommandFilter = new PacketTypeFilter(BlockingCommand.class);
-        mConn.addPacketListener(new BlockListListener(mControl), blockingCommandFilter);
+        mConn.addPacketListener(mPipeline.wrap("blocklist",
+                new BlockListListener(mControl)), blockingCommandFilter);
 
         PacketFilter publicKeyFilter = new PacketTypeFilter(PublicKeyPublish.class);
-        mConn.addPacketListener(new PublicKeyListener(mControl), publicKeyFilter);
+        mConn.addPacketListener(mPipeline.wrap("public key",
+                new PublicKeyListener(mControl, mKeyRequester)), publicKeyFilter);
 
         PacketFilter presenceFilter = new PacketTypeFilter(Presence.class);
-        mConn.addPacketListener(new PresenceListener(this, mConn.getRoster(), mControl), presenceFilter);
+        mConn.addPacketListener(mPipeline.wrap("presence",
+                new PresenceListener(this, mConn.getRoster(), mControl, mPresences)), presenceFilter);
 
          // fallback listener
         mConn.addPacketListener(this,
@@ -159,6 +220,11 @@ public final class Client implements PacketListener, Runnable {
                 mConn.connect();
             } catch (XMPPException | SmackException | IOException ex) {
                 LOGGER.log(Level.WARNING, "can't connect", ex);
+                // try again later, no need to bother the user
+                if (mReconnect.isReconnecting() && mReconnect.connectionLost())
+                    return;
+                mReconnect.cancel();
+                mPresences.releaseHeld();
                 mControl.setStatus(ControlCenter.Status.FAILED);
                 mControl.handleException(new KonException(KonException.Error.CLIENT_CONNECT, ex));
                 return;
@@ -169,14 +235,43 @@ public final class Client implements PacketListener, Runnable {
                 mConn.login();
             } catch (XMPPException | SmackException | IOException ex) {
                 LOGGER.log(Level.WARNING, "can't login", ex);
+                mReconnect.cancel();
+                mPresences.releaseHeld();
                 mControl.setStatus(ControlCenter.Status.FAILED);
                 mControl.handleException(new KonException(KonException.Error.CLIENT_LOGIN, ex));
                 return;
             }
         }
 
+        mReconnect.connected();
+
+        if (mConn.wasResumed()) {
+            // no session setup needed
+            LOGGER.info("stream resumed");
+            // the contacts are as online as before
+            mPresences.dropHeld();
+            mSender.resumed();
+            mKeepAlive.start(mConn);
+            mControl.setStatus(ControlCenter.Status.CONNECTED);
+            mReceipts.flush();
+            return;
+        }
+
+        // new stream, also if resumption failed
+        mPresences.releaseHeld();
+        mKeyRequester.newStream();
+        mSender.newStream();
+        mConn.removeAllStanzaAcknowledgedListeners();
         try {
             mConn.addStanzaAcknowledgedListener(new AcknowledgedListener(mControl));
+            mConn.addStanzaAcknowledgedListener(new PacketListener() {
+                @Override
+                public void processPacket(Packet packet) {
+                    PacketTrace.getInstance().acknowledged(packet);
+                    mStreamIDs.remove(packet.getPacketID());
+                    mSender.acknowledged(packet.getPacketID());
+                }
+            });
         } catch (StreamManagementException.StreamManagementNotEnabledException ex) {
             LOGGER.log(Level.WARNING, "stream management not enabled", ex);
         }
@@ -185,10 +280,23 @@ public final class Client implements PacketListener, Runnable {
 
         this.sendBlocklistRequest();
 
+        mKeepAlive.start(mConn);
+
         mControl.setStatus(ControlCenter.Status.CONNECTED);
+
+        mReceipts.flush();
     }
 
     public void disconnect() {
+        mReconnect.cancel();
+        this.closeConnection();
+        mPresences.releaseHeld();
+    }
+
+    private void closeConnection() {
+        // receipts for saved messages must not wait for the next connection
+        mReceipts.flush();
+        mKeepAlive.stop();
         synchronized (this) {
             if (mConn != null && mConn.isConnected()) {
                 mConn.disconnect();
@@ -206,6 +314,59 @@ public final class Client implements PacketListener, Runnable {
         return mConn == null || !mConn.isAuthenticated() ? "" : mConn.getUser();
     }
 
+    public ReconnectionManager getReconnectionManager() {
+        return mReconnect;
+    }
+
+    public KeyRequester getKeyRequester() {
+        return mKeyRequester;
+    }
+
+    /** Keep-alive pings and connection health, for statistics. */
+    public KeepAlive getKeepAlive() {
+        return mKeepAlive;
+    }
+
+    /** The pipeline processing incoming packets, for statistics. */
+    public InboundPipeline getInboundPipeline() {
+        return mPipeline;
+    }
+
+    /**
+     * The server did not answer a ping, the connection is probably broken
+     * without the socket noticing it. Close it to reconnect (and resume the
+     * stream) now instead of waiting for a TCP timeout.
+     */
+    void connectionDead(KonConnection conn) {
+        synchronized (this) {
+            if (conn != mConn || !conn.isConnected())
+                return;
+        }
+        conn.abort(new IOException("no response to ping"));
+    }
+
+    /** Return true if the connection was lost but the stream can be resumed. */
+    boolean isResumable() {
+        KonConnection conn = mConn;
+        return conn != null && conn.isDisconnectedButSmResumptionPossible();
+    }
+
+    boolean isConnected() {
+        return mConn != null && mConn.isAuthenticated();
+    }
+
+    /**
+     * Return true if the current stream was resumed after the connection was
+     * lost (XEP-0198). The session state of the server is unchanged then.
+     */
+    public boolean isResumed() {
+        return mConn != null && mConn.isAuthenticated() && mConn.wasResumed();
+    }
+
+    /**
+     * Send a message. Does not block, if too many messages are waiting to be
+     * sent the message is queued later.
+     */
     public void sendMessage(OutMessage message) {
         // check for correct receipt status and reset it
         Status status = message.getReceiptStatus();
@@ -217,33 +378,45 @@ public final class Client implements PacketListener, Runnable {
             return;
         }
 
-        Message smackMessage = new Message();
-        smackMessage.setPacketID(message.getXMPPID());
-        smackMessage.setType(Message.Type.chat);
-        smackMessage.setTo(message.getJID());
-        smackMessage.addExtension(new DeliveryReceiptRequest());
-        KonConf conf = KonConf.getInstance();
-        if (conf.getBoolean(KonConf.NET_SEND_CHAT_STATE))
-            smackMessage.addExtension(new ChatStateExtension(ChatState.active));
-
-        if (message.getCoderStatus().getEncryption() == Coder.Encryption.NOT &&
-                message.getCoderStatus().getSigning() == Coder.Signing.NOT) {
-            // TODO send more possible content
-            smackMessage.setBody(message.getContent().getPlainText());
-        } else {
-            Optional<byte[]> encrypted = Coder.processOutMessage(message);
-            // check also for security errors just to be sure
-            if (!encrypted.isPresent() ||
-                    !message.getCoderStatus().getErrors().isEmpty()) {
-                LOGGER.warning("encryption failed, not sending message");
-                message.setStatus(Status.ERROR);
-                mControl.handleSecurityErrors(message);
-                return;
-            }
-            smackMessage.addExtension(new E2EEncryption(encrypted.get()));
+        if (mStreamIDs.contains(message.getXMPPID())) {
+            LOGGER.info("message is resent by stream management, id: "+message.getXMPPID());
+            return;
         }
 
-        this.sendPacket(smackMessage);
+        // encryption is done async
+        mSender.queueMessage(message);
+    }
+
+    /**
+     * Request a slot for uploading a file from the upload service of the
+     * server (XEP-0363). Blocks until the server answered.
+     * @return the slot, empty if not connected, the server has no upload
+     * service or rejected the request
+     */
+    public Optional<HTTPFileUpload.Slot> requestUploadSlot(String fileName,
+            long size,
+            String mimeType) {
+        KonConnection conn = mConn;
+        if (conn == null || !conn.isAuthenticated()) {
+            LOGGER.info("can't request upload slot, not connected");
+            return Optional.empty();
+        }
+        try {
+            List<String> services = ServiceDiscoveryManager.getInstanceFor(conn)
+                    .findServices(HTTPFileUpload.NAMESPACE, true, true);
+            if (services.isEmpty()) {
+                LOGGER.warning("server has no upload service");
+                return Optional.empty();
+            }
+            IQ request = new HTTPFileUpload.Request(services.get(0),
+                    fileName, size, mimeType);
+            HTTPFileUpload.Slot slot =
+                    conn.createPacketCollectorAndSend(request).nextResultOrThrow();
+            return Optional.of(slot);
+        } catch (SmackException | XMPPException ex) {
+            LOGGER.log(Level.WARNING, "can't get upload slot", ex);
+            return Optional.empty();
+        }
     }
 
     public void sendVCardRequest(String jid) {
@@ -253,7 +426,17 @@ public final class Client implements PacketListener, Runnable {
         this.sendPacket(vcard);
     }
 
-    public void sendPublicKeyRequest(String jid) {
+    /**
+     * Request the public key of a user. Requests are rate-limited and not
+     * sent again while waiting for a response or after the user had no key.
+     * @param fingerprint the fingerprint announced by the user, empty if
+     * unknown
+     */
+    public void requestPublicKey(String jid, String fingerprint) {
+        mKeyRequester.request(jid, fingerprint);
+    }
+
+    void sendPublicKeyRequest(String jid) {
         PublicKeyPublish publicKeyRequest = new PublicKeyPublish();
         publicKeyRequest.setTo(jid);
         this.sendPacket(publicKeyRequest);
@@ -292,18 +475,62 @@ public final class Client implements PacketListener, Runnable {
         this.sendPacket(subscribeRequest);
     }
 
-    synchronized void sendPacket(Packet p) {
+    /**
+     * Send a packet. Not synchronized, the connection queues packets and
+     * sending must not wait for connecting.
+     * @return true if the packet was queued by the connection, false if not
+     * connected
+     */
+    boolean sendPacket(Packet p) {
+        KonConnection conn = mConn;
+        if (conn == null) {
+            LOGGER.info("can't send packet, no connection.");
+            return false;
+        }
         try {
-            mConn.sendPacket(p);
+            conn.sendPacket(p);
+            if (p instanceof Message && conn.isSmEnabled())
+                mStreamIDs.add(p.getPacketID());
         } catch (SmackException.NotConnectedException ex) {
             LOGGER.info("can't send packet, not connected.");
+            return false;
         }
-        LOGGER.info("sent packet: "+p.toXML());
+        PacketTrace.getInstance().sent(p);
+        return true;
+    }
+
+    /**
+     * Send packets one after another.
+     * @return the number of packets sent
+     */
+    int sendPackets(List<? extends Packet> packets) {
+        KonConnection conn = mConn;
+        int sent = 0;
+        for (Packet p : packets) {
+            try {
+                if (conn == null)
+                    break;
+                conn.sendPacket(p);
+            } catch (SmackException.NotConnectedException ex) {
+                LOGGER.info("can't send packets, not connected.");
+                break;
+            }
+            PacketTrace.getInstance().sent(p);
+            sent++;
+        }
+        return sent;
+    }
+
+    /** Return true if sent packets are acknowledged (XEP-0198). */
+    boolean isSmEnabled() {
+        KonConnection conn = mConn;
+        return conn != null && conn.isSmEnabled();
     }
 
     @Override
     public void processPacket(Packet packet) {
-        LOGGER.info("got packet (unhandled): "+packet.toXML());
+        LOGGER.info("got unhandled packet");
+        PacketTrace.getInstance().received(packet);
     }
 
     @Override
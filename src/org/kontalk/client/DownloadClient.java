@@ -20,31 +20,42 @@ package org.kontalk.client;
 
 import java.util.logging.Logger;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.PrivateKey;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.Properties;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.net.ssl.SSLContext;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.input.TeeInputStream;
 import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
-import org.kontalk.util.TrustUtils;
+import org.kontalk.system.AttachmentStore;
+import org.kontalk.util.EncodingUtils;
 
 /**
  *
@@ -57,163 +68,393 @@ public class DownloadClient {
     private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern
             .compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
 
-    private final PrivateKey mPrivateKey;
-    private final X509Certificate mCertificate;
-    private final boolean mValidateCertificate;
-    private final ProgressListener mListener;
+    /** Range response header: "bytes first-last/length" */
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+            .compile("bytes\\s+(\\d+)-\\d+/(\\d+|\\*)");
 
-    private HttpRequestBase mCurrentRequest;
-    private CloseableHttpClient mHTTPClient;
+    /** Algorithm names in the Digest header (RFC 3230) and for Java. */
+    private static final String[][] DIGEST_ALGORITHMS = {
+        {"sha-256", "SHA-256"}, {"sha", "SHA-1"}, {"md5", "MD5"}};
+    /** Connect and socket timeout in milliseconds. */
+    private static final int TIMEOUT = 30 * 1000;
 
-    public DownloadClient(PrivateKey privateKey,
-            X509Certificate bridgeCert,
-            boolean validateCertificate,
-            ProgressListener listener) {
-        mPrivateKey = privateKey;
-        mCertificate = bridgeCert;
-        mValidateCertificate = validateCertificate;
-        mListener = listener;
+    /** Priority classes of downloads, sharing the bandwidth by weight. */
+    public enum Priority {
+        /** Attachments the user is looking at. */
+        HIGH(4),
+        /** Recent attachments. */
+        NORMAL(2),
+        /** Old attachments, downloaded in the background. */
+        LOW(1);
+
+        final int weight;
+
+        private Priority(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private final CloseableHttpClient mHTTPClient;
+    private final BandwidthLimiter mLimiter;
+    private final int mMaxConnections;
+    private final int mMaxHostConnections;
+
+    /**
+     * Create a new client for downloads and uploads. The client is
+     * thread-safe and keeps a pool of connections to reuse.
+     * @param sslContext SSL context for HTTPS connections
+     * @param maxConnections maximum number of concurrent connections
+     * @param maxHostConnections maximum number of concurrent connections to
+     * one host
+     * @param maxRate maximum rate of all downloads in bytes per second, no
+     * limit if zero
+     */
+    public DownloadClient(SSLContext sslContext,
+            int maxConnections,
+            int maxHostConnections,
+            long maxRate) {
+        this(sslContext, maxConnections, maxHostConnections, new BandwidthLimiter(maxRate));
+    }
+
+    /**
+     * Create a new client replacing another one, e.g. for a new SSL context.
+     * The limits and the bandwidth budget are the same and shared with the
+     * downloads still running on the other client.
+     * @param sslContext SSL context for HTTPS connections
+     * @param previous the replaced client
+     */
+    public DownloadClient(SSLContext sslContext, DownloadClient previous) {
+        this(sslContext,
+                previous.mMaxConnections,
+                previous.mMaxHostConnections,
+                previous.mLimiter);
+    }
+
+    private DownloadClient(SSLContext sslContext,
+            int maxConnections,
+            int maxHostConnections,
+            BandwidthLimiter limiter) {
+        mHTTPClient = createHTTPClient(sslContext, maxConnections, maxHostConnections);
+        mLimiter = limiter;
+        mMaxConnections = maxConnections;
+        mMaxHostConnections = maxHostConnections;
     }
 
-    // TODO unused
-    public void abort() {
-        if (mCurrentRequest != null)
-            mCurrentRequest.abort();
-        mListener.updateProgress(-3);
+    /**
+     * Close the pooled connections. Must not be called while transfers are
+     * running.
+     */
+    public void close() {
+        try {
+            mHTTPClient.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't close HTTP client", ex);
+        }
     }
 
     /**
      * Downloads to a directory represented by a {@link File} object,
      * determining the file name from the Content-Disposition header.
+     * Data is written to a partial file first. If the transfer is interrupted
+     * it is retried with increasing delay and continued at the current
+     * position if the server supports range requests. The length and, if the
+     * server sends a Digest or Content-MD5 header, the hash of the file are
+     * verified before it is saved.
      * @param url URL of file
      * @param base base directory in which the download is saved
+     * @param length expected length of the file, -1 if unknown
+     * @param priority priority class for sharing the bandwidth
      * @param listener listener for download progress
-     * @return the absolute file path of the downloaded file, or an empty string
-     * if the file could not be downloaded
+     * @param optHandler handler for processing the data while downloading; not
+     * used if a download is continued, told to discard its result if the
+     * attempt fails. If the handler does not keep the data, nothing is written
+     * and the download can't be continued.
+     * @return the absolute file path of the downloaded file (that does not
+     * exist if the data was not kept), or an empty string if the file could
+     * not be downloaded
      */
-    public String download(String url, File base) {
-        if (mHTTPClient == null) {
-            mHTTPClient = createHTTPClient(mPrivateKey, mCertificate, mValidateCertificate);
-            if (mHTTPClient == null)
-                return "";
+    public String download(String url,
+            File base,
+            long length,
+            Priority priority,
+            ProgressListener listener,
+            Optional<StreamHandler> optHandler) {
+        LOGGER.info("downloading file from URL=" + url+ "...");
+        PartialFile part = new PartialFile(base, url);
+        RetryPolicy retry = new RetryPolicy();
+        while (true) {
+            IOException failure;
+            mLimiter.register(priority);
+            try {
+                String path = this.downloadOnce(url, base, part, length,
+                        priority, listener, optHandler);
+                if (!path.isEmpty()) {
+                    LOGGER.info("... download successful!");
+                } else if (optHandler.isPresent()) {
+                    optHandler.get().discard();
+                }
+                return path;
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "download attempt "+retry.getAttempt()+" failed", ex);
+                // the handled data was not verified
+                if (optHandler.isPresent())
+                    optHandler.get().discard();
+                failure = ex;
+            } finally {
+                mLimiter.unregister(priority);
+            }
+            // waiting downloads don't take bandwidth from running ones
+            if (!retry.retry(failure))
+                break;
         }
+        LOGGER.warning("giving up download, partial data kept: "+part.getBytes()+" bytes");
+        return "";
+    }
 
-        LOGGER.info("downloading file from URL=" + url+ "...");
-        mCurrentRequest = new HttpGet(url);
+    /**
+     * Upload a file with HTTP PUT, e.g. to a slot of the upload service
+     * (XEP-0363). The file is streamed from disk. An upload can't be
+     * continued, if the transfer is interrupted it is retried from the start
+     * with increasing delay.
+     * @param file the file to upload
+     * @param url URL to upload to
+     * @param mimeType content type of the file, must be the type the slot
+     * was requested for
+     * @param listener listener for upload progress
+     * @return true if the file was uploaded, false on permanent failure
+     */
+    public boolean upload(File file,
+            String url,
+            String mimeType,
+            ProgressListener listener) {
+        LOGGER.info("uploading file to URL=" + url+ "...");
+        RetryPolicy retry = new RetryPolicy();
+        while (true) {
+            try {
+                this.uploadOnce(file, url, mimeType, listener);
+                LOGGER.info("... upload successful!");
+                return true;
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "upload attempt "+retry.getAttempt()+" failed", ex);
+                if (!retry.retry(ex))
+                    break;
+            }
+        }
+        LOGGER.warning("giving up upload");
+        return false;
+    }
 
-        // execute request
-        CloseableHttpResponse response;
-        try {
-            response = mHTTPClient.execute(mCurrentRequest);
-        } catch (IOException ex) {
-            LOGGER.log(Level.WARNING, "can't execute request", ex);
-            return "";
+    private void uploadOnce(File file,
+            String url,
+            String mimeType,
+            ProgressListener listener) throws IOException {
+        final ProgressReporter reporter = new ProgressReporter(listener, 0, file.length());
+        HttpPut request = new HttpPut(url);
+        request.setEntity(new FileEntity(file, ContentType.create(mimeType)) {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                super.writeTo(new CountingOutputStream(out) {
+                    @Override
+                    protected void afterWrite(int n) {
+                        reporter.update(this.getByteCount());
+                    }
+                });
+            }
+        });
+
+        try (CloseableHttpResponse response = mHTTPClient.execute(request)) {
+            int code = response.getStatusLine().getStatusCode();
+            // HTTP/1.1 200 OK or 201 Created -- the retry policy decides
+            // about other codes
+            if (code != 200 && code != 201)
+                throw new RetryPolicy.ServerException(response);
         }
+    }
 
-        try {
+    /**
+     * One download attempt.
+     * @return the absolute file path or an empty string on permanent failure
+     * @throws IOException on failures, the retry policy decides about another
+     * attempt
+     */
+    private String downloadOnce(String url,
+            File base,
+            PartialFile part,
+            long length,
+            Priority priority,
+            final ProgressListener listener,
+            Optional<StreamHandler> optHandler) throws IOException {
+        // without a file there is nothing to continue
+        boolean store = !optHandler.isPresent() || optHandler.get().keepData();
+        if (!store)
+            part.delete();
+
+        HttpGet request = new HttpGet(url);
+        final long offset = part.getBytes();
+        String validator = part.getValidator();
+        if (offset > 0 && !validator.isEmpty()) {
+            // continue if the file on the server is still the same
+            request.setHeader("Range", "bytes=" + offset + "-");
+            request.setHeader("If-Range", validator);
+        }
+
+        // execute request
+        try (CloseableHttpResponse response = mHTTPClient.execute(request)) {
             int code = response.getStatusLine().getStatusCode();
-            // HTTP/1.1 200 OK -- other codes should throw Exceptions
-            if (code != 200) {
-                LOGGER.warning("invalid response code: " + code);
-                return "";
+            boolean resumed = code == 206;
+            if (code == 416) {
+                // part is invalid, start again
+                part.delete();
+                throw new IOException("range not satisfiable");
             }
+            // HTTP/1.1 200 OK -- the retry policy decides about other codes
+            if (code != 200 && !resumed)
+                throw new RetryPolicy.ServerException(response);
 
             // get filename
+            String filename = part.getFileName();
             Header dispHeader = response.getFirstHeader("Content-Disposition");
-            if (dispHeader == null) {
-                LOGGER.warning("no content header");
-                return "";
+            if (dispHeader != null) {
+                filename = parseContentDisposition(dispHeader.getValue());
+                // never trust incoming data
+                filename = filename != null ? new File(filename).getName() : "";
             }
-            String filename = parseContentDisposition(dispHeader.getValue());
-            // never trust incoming data
-            filename = filename != null ? new File(filename).getName() : "";
             if (filename.isEmpty()) {
-                LOGGER.warning("no filename in content: "+dispHeader.getValue());
+                LOGGER.warning("no filename in content: "+
+                        (dispHeader == null ? "no content header" : dispHeader.getValue()));
                 return "";
             }
 
             // get file size
             long s = -1;
-            Header lengthHeader = response.getFirstHeader("Content-Length");
-            if (lengthHeader == null) {
-                LOGGER.warning("no length header");
+            if (resumed) {
+                Header rangeHeader = response.getFirstHeader("Content-Range");
+                if (rangeHeader == null ||
+                        parseRangeStart(rangeHeader.getValue()) != offset) {
+                    part.delete();
+                    throw new IOException("invalid content range");
+                }
+                s = parseRangeLength(rangeHeader.getValue());
             } else {
-                try {
-                    s = Long.parseLong(lengthHeader.getValue());
-                } catch (NumberFormatException ex) {
-                    LOGGER.log(Level.WARNING, "can' parse file size", ex);
+                Header lengthHeader = response.getFirstHeader("Content-Length");
+                if (lengthHeader == null) {
+                    LOGGER.warning("no length header");
+                } else {
+                    try {
+                        s = Long.parseLong(lengthHeader.getValue());
+                    } catch (NumberFormatException ex) {
+                        LOGGER.log(Level.WARNING, "can' parse file size", ex);
+                    }
                 }
             }
             final long fileSize = s;
-            mListener.updateProgress(s < 0 ? -2 : 0);
+            final ProgressReporter reporter = new ProgressReporter(listener, offset, fileSize);
 
-            // TODO should check for content-disposition parsing here
-            // and choose another filename if necessary
             HttpEntity entity = response.getEntity();
             if (entity == null) {
                 LOGGER.warning("no entity in response");
                 return "";
             }
 
-            File destination = new File(base, filename);
-            if (destination.exists()) {
-                LOGGER.warning("file already exists: "+destination.getAbsolutePath());
-                return "";
+            if (resumed) {
+                LOGGER.info("resuming download at byte "+offset);
+            } else {
+                // new or changed file
+                part.delete();
             }
-            try (FileOutputStream out = new FileOutputStream(destination)){
+            // expected hash of the whole file
+            String digest = parseDigest(response, resumed);
+            if (digest.isEmpty() && resumed)
+                digest = part.getDigest();
+            Optional<MessageDigest> optMD = digest.isEmpty() ?
+                    Optional.<MessageDigest>empty() :
+                    Optional.of(createDigest(digest));
+            if (resumed && optMD.isPresent())
+                updateDigest(optMD.get(), part.getFile());
+            if (store)
+                part.saveInfo(getValidator(response), filename, digest);
+            long written;
+            try (OutputStream fileOut = store ?
+                    new FileOutputStream(part.getFile(), resumed) :
+                    new NullOutputStream()) {
+                OutputStream out = optMD.isPresent() ?
+                        new DigestOutputStream(fileOut, optMD.get()) :
+                        fileOut;
                 CountingOutputStream cOut = new CountingOutputStream(out) {
                     @Override
-                    protected synchronized void afterWrite(int n) {
-                        // inform listener
-                        if (fileSize <= 0) return;
-                        mListener.updateProgress(
-                                (int) (this.getByteCount() /(fileSize * 1.0) * 100));
+                    protected void afterWrite(int n) {
+                        reporter.update(offset + this.getByteCount());
                     }
                 };
-                entity.writeTo(cOut);
-            } catch (IOException ex) {
-                LOGGER.log(Level.WARNING, "can't download file", ex);
-                return "";
+                InputStream content = mLimiter.limit(entity.getContent(), priority);
+                if (!resumed && optHandler.isPresent()) {
+                    // if kept, the file is written for continuing the download
+                    FailureInputStream in = new FailureInputStream(
+                            new TeeInputStream(content, cOut));
+                    optHandler.get().handle(in, filename);
+                    // the handler may have swallowed a transfer error
+                    in.throwFailure();
+                    // read what the handler did not
+                    IOUtils.copy(in, new NullOutputStream());
+                } else {
+                    IOUtils.copy(content, cOut);
+                }
+                written = cOut.getByteCount();
             }
 
-            LOGGER.info("... download successful!");
-            return destination.getAbsolutePath();
-        } finally {
+            // verify length
+            long bytes = store ? part.getBytes() : written;
+            if ((fileSize >= 0 && bytes != fileSize) ||
+                    (length > 0 && bytes != length)) {
+                part.delete();
+                throw new IOException("invalid file length: " + bytes +
+                        ", expected: " + (length > 0 ? length : fileSize));
+            }
+            // verify hash
+            if (optMD.isPresent() &&
+                    !MessageDigest.isEqual(optMD.get().digest(), digestValue(digest))) {
+                part.delete();
+                String error = "invalid file hash, expected: " + digest;
+                // only a continued download can be wrong by our fault
+                if (resumed)
+                    throw new IOException(error);
+                throw new ClientProtocolException(error);
+            }
+
+            if (!store)
+                return new File(base, filename).getAbsolutePath();
+
+            // choose another name if the file already exists
+            File destination;
             try {
-                response.close();
+                destination = part.moveTo(base, filename);
             } catch (IOException ex) {
-                LOGGER.log(Level.WARNING, "can't close response", ex);
+                LOGGER.log(Level.WARNING, "can't move partial file", ex);
+                return "";
             }
+            return destination.getAbsolutePath();
         }
     }
 
-    private static CloseableHttpClient createHTTPClient(PrivateKey privateKey,
-            X509Certificate certificate,
-            boolean validateCertificate) {
+    private static CloseableHttpClient createHTTPClient(SSLContext sslContext,
+            int maxConnections,
+            int maxHostConnections) {
         //HttpClientBuilder clientBuilder = HttpClientBuilder.create();
         HttpClientBuilder clientBuilder = HttpClients.custom();
-        try {
-            SSLContext sslContext = TrustUtils.getCustomSSLContext(privateKey,
-                    certificate,
-                    validateCertificate);
-            clientBuilder.setSslcontext(sslContext);
-        }
-        catch (KeyStoreException |
-                NoSuchAlgorithmException |
-                CertificateException |
-                IOException |
-                KeyManagementException |
-                UnrecoverableKeyException |
-                NoSuchProviderException ex) {
-            LOGGER.log(Level.WARNING, "unable to set SSL context", ex);
-            return null;
-        }
+        // shared context, TLS sessions are resumed between downloads
+        clientBuilder.setSslcontext(sslContext);
+        // pooled connection manager
+        clientBuilder.setMaxConnTotal(maxConnections);
+        clientBuilder.setMaxConnPerRoute(maxHostConnections);
 
         RequestConfig.Builder rcBuilder = RequestConfig.custom();
         // handle redirects :)
         rcBuilder.setRedirectsEnabled(true);
         // HttpClient bug caused by Lighttpd
         rcBuilder.setExpectContinueEnabled(false);
+        // stalled transfers fail and are retried
+        rcBuilder.setConnectTimeout(TIMEOUT);
+        rcBuilder.setSocketTimeout(TIMEOUT);
         clientBuilder.setDefaultRequestConfig(rcBuilder.build());
 
         // create connection manager
@@ -239,7 +480,276 @@ public class DownloadClient {
         else return null;
     }
 
+    /**
+     * Return the expected hash of the file as "[Java algorithm]:[Base64 hash]"
+     * from the Digest header or, for a complete file, the Content-MD5 header;
+     * empty string if there is none.
+     */
+    private static String parseDigest(CloseableHttpResponse response, boolean resumed) {
+        Header digestHeader = response.getFirstHeader("Digest");
+        if (digestHeader != null) {
+            for (String[] algorithm : DIGEST_ALGORITHMS) {
+                for (String value : digestHeader.getValue().split(",")) {
+                    String[] parts = value.trim().split("=", 2);
+                    if (parts.length == 2 && parts[0].equalsIgnoreCase(algorithm[0]))
+                        return algorithm[1] + ":" + parts[1];
+                }
+            }
+            LOGGER.info("no supported algorithm in digest: "+digestHeader.getValue());
+        }
+        // for range responses the hash is only for the range
+        Header md5Header = response.getFirstHeader("Content-MD5");
+        if (md5Header != null && !resumed)
+            return "MD5:" + md5Header.getValue().trim();
+        return "";
+    }
+
+    /** Return the message digest for an expected hash. */
+    private static MessageDigest createDigest(String digest) {
+        try {
+            return MessageDigest.getInstance(digest.split(":", 2)[0]);
+        } catch (NoSuchAlgorithmException ex) {
+            // every JVM supports these
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] digestValue(String digest) throws IOException {
+        try {
+            return Base64.getDecoder().decode(digest.split(":", 2)[1]);
+        } catch (IllegalArgumentException ex) {
+            throw new ClientProtocolException("invalid hash: " + digest, ex);
+        }
+    }
+
+    /** Update a message digest with the content of a file. */
+    private static void updateDigest(MessageDigest md, File file) throws IOException {
+        try (InputStream in = new DigestInputStream(new FileInputStream(file), md)) {
+            IOUtils.copy(in, new NullOutputStream());
+        }
+    }
+
+    /**
+     * Return the number of bytes already downloaded for an unfinished
+     * download.
+     */
+    public static long getPartialBytes(File base, String url) {
+        return new PartialFile(base, url).getBytes();
+    }
+
+    /** Return the start position in a Content-Range header or -1. */
+    private static long parseRangeStart(String contentRange) {
+        Matcher m = CONTENT_RANGE_PATTERN.matcher(contentRange);
+        return m.find() ? Long.parseLong(m.group(1)) : -1;
+    }
+
+    /** Return the total length in a Content-Range header or -1 if unknown. */
+    private static long parseRangeLength(String contentRange) {
+        Matcher m = CONTENT_RANGE_PATTERN.matcher(contentRange);
+        return m.find() && !m.group(2).equals("*") ? Long.parseLong(m.group(2)) : -1;
+    }
+
+    /**
+     * Return a strong validator for the If-Range header: the entity tag or
+     * the last modification date; empty string if there is none.
+     */
+    private static String getValidator(CloseableHttpResponse response) {
+        Header eTag = response.getFirstHeader("ETag");
+        if (eTag != null && !eTag.getValue().startsWith("W/"))
+            return eTag.getValue();
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified != null ? lastModified.getValue() : "";
+    }
+
+    /**
+     * Data of an unfinished download: the partial file and an info file
+     * with the validator and file name needed to continue it. The files are
+     * named by the URL, a URL must not be downloaded twice at the same time.
+     */
+    private static class PartialFile {
+        private final static String VALIDATOR = "validator";
+        private final static String FILE_NAME = "file_name";
+        private final static String DIGEST = "digest";
+
+        private final File mFile;
+        private final File mInfoFile;
+
+        PartialFile(File base, String url) {
+            String name = nameForURL(url);
+            mFile = new File(base, name + ".part");
+            mInfoFile = new File(base, name + ".part.info");
+        }
+
+        File getFile() {
+            return mFile;
+        }
+
+        long getBytes() {
+            return mFile.exists() ? mFile.length() : 0;
+        }
+
+        String getValidator() {
+            return this.loadInfo().getProperty(VALIDATOR, "");
+        }
+
+        String getFileName() {
+            return this.loadInfo().getProperty(FILE_NAME, "");
+        }
+
+        String getDigest() {
+            return this.loadInfo().getProperty(DIGEST, "");
+        }
+
+        private Properties loadInfo() {
+            Properties info = new Properties();
+            if (!mInfoFile.exists())
+                return info;
+            try (FileInputStream in = new FileInputStream(mInfoFile)) {
+                info.load(in);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "can't load download info", ex);
+            }
+            return info;
+        }
+
+        void saveInfo(String validator, String fileName, String digest) {
+            Properties info = new Properties();
+            info.setProperty(VALIDATOR, validator);
+            info.setProperty(FILE_NAME, fileName);
+            info.setProperty(DIGEST, digest);
+            try (FileOutputStream out = new FileOutputStream(mInfoFile)) {
+                info.store(out, null);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "can't save download info", ex);
+            }
+        }
+
+        File moveTo(File dir, String fileName) throws IOException {
+            File destination = AttachmentStore.moveToUnique(mFile, dir, fileName);
+            mInfoFile.delete();
+            return destination;
+        }
+
+        void delete() {
+            mFile.delete();
+            mInfoFile.delete();
+        }
+
+        private static String nameForURL(String url) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                return EncodingUtils.bytesToHex(md.digest(url.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException ex) {
+                // every JVM supports SHA-1
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    /** Input stream remembering the first read error. */
+    private static class FailureInputStream extends ProxyInputStream {
+        private IOException mFailure = null;
+
+        FailureInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        protected void handleIOException(IOException ex) throws IOException {
+            if (mFailure == null)
+                mFailure = ex;
+            throw ex;
+        }
+
+        void throwFailure() throws IOException {
+            if (mFailure != null)
+                throw mFailure;
+        }
+    }
+
+    /**
+     * Reports the progress of one transfer attempt to a listener, but only
+     * if enough time passed or the progress changed significantly since the
+     * last report.
+     */
+    private static class ProgressReporter {
+        /** Minimum time between two reports in milliseconds. */
+        private final static long MIN_INTERVAL = 1000;
+        /** Progress change in percent that is always reported. */
+        private final static int MIN_DELTA = 5;
+
+        private final ProgressListener mListener;
+        private final long mStartBytes;
+        private final long mTotal;
+        private final long mStartTime;
+
+        private long mLastTime;
+        private int mLastPercent;
+
+        ProgressReporter(ProgressListener listener, long startBytes, long total) {
+            mListener = listener;
+            mStartBytes = startBytes;
+            mTotal = total;
+            mStartTime = System.currentTimeMillis();
+            mLastTime = mStartTime;
+            mLastPercent = mTotal <= 0 ? -2 : this.percent(startBytes);
+            mListener.updateProgress(mLastPercent, -1, -1);
+        }
+
+        void update(long bytes) {
+            if (mTotal <= 0)
+                return;
+            long now = System.currentTimeMillis();
+            int percent = this.percent(bytes);
+            if (percent < 100 &&
+                    now - mLastTime < MIN_INTERVAL &&
+                    percent - mLastPercent < MIN_DELTA)
+                return;
+            if (percent == mLastPercent && percent == 100)
+                return;
+
+            // average rate of this attempt
+            long elapsed = Math.max(now - mStartTime, 1);
+            long rate = (bytes - mStartBytes) * 1000 / elapsed;
+            long eta = rate > 0 ? (mTotal - bytes) / rate : -1;
+
+            mLastTime = now;
+            mLastPercent = percent;
+            mListener.updateProgress(percent, rate, eta);
+        }
+
+        private int percent(long bytes) {
+            return (int) (bytes / (mTotal * 1.0) * 100);
+        }
+    }
+
     public interface ProgressListener {
-        void updateProgress(int percent);
+        /**
+         * @param percent progress in percent; -2 if size is unknown
+         * @param rate transfer rate in bytes per second, -1 if unknown
+         * @param eta estimated time left in seconds, -1 if unknown
+         */
+        void updateProgress(int percent, long rate, long eta);
+    }
+
+    public interface StreamHandler {
+        /**
+         * Process the data stream of a download.
+         * @param in the data, read while downloading
+         * @param fileName the file name of the download
+         */
+        void handle(InputStream in, String fileName);
+
+        /**
+         * Return true if the downloaded data should also be saved to a file,
+         * else only the handler gets it.
+         */
+        boolean keepData();
+
+        /**
+         * The download attempt of the last handled data failed, discard the
+         * result.
+         */
+        void discard();
     }
 }
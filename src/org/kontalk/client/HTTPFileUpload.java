@@ -0,0 +1,126 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * HTTP File Upload (XEP-0363).
+ * The client requests an upload slot from the upload service of the server:
+ * an URL to upload the file to with HTTP PUT and an URL to download it from.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class HTTPFileUpload {
+
+    static final String NAMESPACE = "urn:xmpp:http:upload";
+
+    private HTTPFileUpload() {}
+
+    /** Request for an upload slot. */
+    static final class Request extends IQ {
+        static final String ELEMENT = "request";
+
+        private final String mFileName;
+        private final long mSize;
+        private final String mContentType;
+
+        Request(String service, String fileName, long size, String contentType) {
+            super(ELEMENT, NAMESPACE);
+            mFileName = fileName;
+            mSize = size;
+            mContentType = contentType;
+            this.setType(IQ.Type.get);
+            this.setTo(service);
+        }
+
+        @Override
+        protected IQChildElementXmlStringBuilder getIQChildElementBuilder(IQChildElementXmlStringBuilder xml) {
+            xml.rightAngleBracket();
+            xml.element("filename", mFileName);
+            xml.element("size", Long.toString(mSize));
+            xml.optElement("content-type", mContentType);
+            return xml;
+        }
+    }
+
+    /** The slot in the response of the upload service. */
+    public static final class Slot extends IQ {
+        static final String ELEMENT = "slot";
+
+        private final String mPutURL;
+        private final String mGetURL;
+
+        Slot(String putURL, String getURL) {
+            super(ELEMENT, NAMESPACE);
+            mPutURL = putURL;
+            mGetURL = getURL;
+            this.setType(IQ.Type.result);
+        }
+
+        /** URL to upload the file to with HTTP PUT. */
+        public String getPutURL() {
+            return mPutURL;
+        }
+
+        /** URL the file can be downloaded from after uploading. */
+        public String getGetURL() {
+            return mGetURL;
+        }
+
+        @Override
+        protected IQChildElementXmlStringBuilder getIQChildElementBuilder(IQChildElementXmlStringBuilder xml) {
+            xml.rightAngleBracket();
+            xml.element("put", mPutURL);
+            xml.element("get", mGetURL);
+            return xml;
+        }
+    }
+
+    static final class SlotProvider extends IQProvider<Slot> {
+
+        @Override
+        public Slot parse(XmlPullParser parser, int initialDepth)
+                throws XmlPullParserException, IOException {
+            String putURL = "";
+            String getURL = "";
+            while (true) {
+                int eventType = parser.next();
+                if (eventType == XmlPullParser.START_TAG) {
+                    switch (parser.getName()) {
+                        case "put":
+                            putURL = parser.nextText();
+                            break;
+                        case "get":
+                            getURL = parser.nextText();
+                            break;
+                    }
+                } else if (eventType == XmlPullParser.END_TAG &&
+                        parser.getDepth() == initialDepth) {
+                    break;
+                }
+            }
+            return new Slot(putURL, getURL);
+        }
+    }
+}
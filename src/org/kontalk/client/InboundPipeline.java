@@ -0,0 +1,207 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.packet.Packet;
+import org.jxmpp.util.XmppStringUtils;
+
+/**
+ * Processes incoming packets off the connection thread.
+ * Packets are handed to single-threaded partitions chosen by the bare JID of
+ * the sender: all packets of one contact are processed in order, packets of
+ * different contacts in parallel. The queue of a partition is bounded; if it
+ * is full the connection thread waits, slowing down reading from the server.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class InboundPipeline {
+    private final static Logger LOGGER = Logger.getLogger(InboundPipeline.class.getName());
+
+    private final static int QUEUE_CAPACITY = 1000;
+
+    private final ThreadPoolExecutor[] mPartitions;
+    private final Map<String, Stage> mStages = new ConcurrentHashMap<>();
+    private final AtomicLong mBlocked = new AtomicLong();
+
+    InboundPipeline() {
+        int n = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+        mPartitions = new ThreadPoolExecutor[n];
+        for (int i = 0; i < n; i++)
+            mPartitions[i] = createPartition(i);
+    }
+
+    /**
+     * Return a listener that processes packets with a listener in this
+     * pipeline.
+     * @param name name of the stage, for statistics
+     */
+    PacketListener wrap(String name, final PacketListener listener) {
+        // statistics are kept for new connections
+        mStages.putIfAbsent(name, new Stage(name));
+        final Stage stage = mStages.get(name);
+        return new PacketListener() {
+            @Override
+            public void processPacket(final Packet packet) {
+                PacketTrace.getInstance().received(packet);
+                final long queued = System.nanoTime();
+                InboundPipeline.this.partition(packet).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long started = System.nanoTime();
+                        try {
+                            listener.processPacket(packet);
+                        } catch (SmackException.NotConnectedException | RuntimeException ex) {
+                            LOGGER.log(Level.WARNING, "can't process packet in stage "+stage.getName(), ex);
+                        }
+                        stage.record(started - queued, System.nanoTime() - started);
+                    }
+                });
+            }
+        };
+    }
+
+    /** Statistics for all stages. */
+    public Collection<Stage> getStages() {
+        return new ArrayList<>(mStages.values());
+    }
+
+    /** Number of packets waiting in all partitions. */
+    public int getQueued() {
+        int queued = 0;
+        for (ThreadPoolExecutor partition : mPartitions)
+            queued += partition.getQueue().size();
+        return queued;
+    }
+
+    /** How often the connection thread had to wait for a full queue. */
+    public long getBlocked() {
+        return mBlocked.get();
+    }
+
+    private ThreadPoolExecutor partition(Packet packet) {
+        String from = packet.getFrom();
+        String key = from == null ? "" : XmppStringUtils.parseBareJid(from);
+        return mPartitions[Math.floorMod(key.hashCode(), mPartitions.length)];
+    }
+
+    private ThreadPoolExecutor createPartition(final int index) {
+        ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Inbound-" + index);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        // order is kept only if the caller waits, never runs it itself
+        RejectedExecutionHandler blocking = new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    LOGGER.warning("pipeline shut down, packet dropped");
+                    return;
+                }
+                mBlocked.incrementAndGet();
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException ex) {
+                    LOGGER.log(Level.WARNING, "interrupted while waiting, packet dropped", ex);
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                factory,
+                blocking);
+    }
+
+    /**
+     * Latency statistics of one stage: time packets waited in the queue and
+     * time of processing.
+     */
+    public static final class Stage {
+        private final String mName;
+        private long mCount = 0;
+        private long mQueueTotal = 0;
+        private long mQueueMax = 0;
+        private long mProcessTotal = 0;
+        private long mProcessMax = 0;
+
+        private Stage(String name) {
+            mName = name;
+        }
+
+        private synchronized void record(long queueNanos, long processNanos) {
+            mCount++;
+            mQueueTotal += queueNanos;
+            mQueueMax = Math.max(mQueueMax, queueNanos);
+            mProcessTotal += processNanos;
+            mProcessMax = Math.max(mProcessMax, processNanos);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        /** Average time in queue in milliseconds. */
+        public synchronized double getAverageQueueTime() {
+            return mCount == 0 ? 0 : mQueueTotal / 1e6 / mCount;
+        }
+
+        public synchronized double getMaxQueueTime() {
+            return mQueueMax / 1e6;
+        }
+
+        /** Average processing time in milliseconds. */
+        public synchronized double getAverageProcessTime() {
+            return mCount == 0 ? 0 : mProcessTotal / 1e6 / mCount;
+        }
+
+        public synchronized double getMaxProcessTime() {
+            return mProcessMax / 1e6;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s: %d packets, queue avg/max %.1f/%.1f ms, process avg/max %.1f/%.1f ms",
+                    mName, mCount,
+                    this.getAverageQueueTime(), this.getMaxQueueTime(),
+                    this.getAverageProcessTime(), this.getMaxProcessTime());
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smackx.ping.PingManager;
+
+/**
+ * Detects broken connections with pings to the server (XEP-0199).
+ * A ping is sent when nothing was received for the ping interval. The
+ * interval adapts to the network: it grows while pings after idle periods
+ * succeed and is lowered below the idle time after which a ping failed, e.g.
+ * because a NAT router dropped the idle connection. A missed pong closes the
+ * connection at once, so that reconnecting starts immediately.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class KeepAlive {
+    private final static Logger LOGGER = Logger.getLogger(KeepAlive.class.getName());
+
+    /** Ping intervals in milliseconds. */
+    private final static long INITIAL_INTERVAL = 60 * 1000;
+    private final static long MIN_INTERVAL = 15 * 1000;
+    private final static long MAX_INTERVAL = 10 * 60 * 1000;
+    private final static long STEP = 30 * 1000;
+    /** Number of successful pings at the limit before trying a longer interval. */
+    private final static int PROBE_AFTER = 10;
+    /** Time to wait for the pong. */
+    private final static long PING_TIMEOUT = 10 * 1000;
+
+    /** Upper bounds of the RTT histogram buckets in milliseconds. */
+    public final static long[] RTT_BUCKETS = {50, 100, 250, 500, 1000, 2500, Long.MAX_VALUE};
+
+    private final Client mClient;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Keep Alive");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private KonConnection mConn = null;
+    private ScheduledFuture<?> mFuture = null;
+    /** Start of pinging with the current connection. */
+    private long mStarted = 0;
+
+    /** Current interval and upper limit learned from failed pings. */
+    private long mInterval = INITIAL_INTERVAL;
+    private long mLimit = MAX_INTERVAL;
+    private int mSuccessesAtLimit = 0;
+
+    // metrics
+    private final long[] mRTTHistogram = new long[RTT_BUCKETS.length];
+    private long mLastRTT = -1;
+    private long mPings = 0;
+    private long mMissedPongs = 0;
+
+    KeepAlive(Client client) {
+        mClient = client;
+    }
+
+    /** Start pinging over a connection after login. */
+    synchronized void start(KonConnection conn) {
+        this.stop();
+        mConn = conn;
+        mStarted = System.currentTimeMillis();
+        // replaced by this
+        PingManager.getInstanceFor(conn).setPingInterval(-1);
+        this.schedule(mInterval);
+    }
+
+    synchronized void stop() {
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+        mConn = null;
+    }
+
+    /** Current ping interval in milliseconds. */
+    public synchronized long getInterval() {
+        return mInterval;
+    }
+
+    /** Round-trip time of the last ping in milliseconds, -1 if none. */
+    public synchronized long getLastRTT() {
+        return mLastRTT;
+    }
+
+    /**
+     * Number of pings by round-trip time, one count for each bucket in
+     * {@link #RTT_BUCKETS}.
+     */
+    public synchronized long[] getRTTHistogram() {
+        return Arrays.copyOf(mRTTHistogram, mRTTHistogram.length);
+    }
+
+    public synchronized long getPings() {
+        return mPings;
+    }
+
+    public synchronized long getMissedPongs() {
+        return mMissedPongs;
+    }
+
+    /**
+     * Time when the last packet was received, in milliseconds since the
+     * epoch, -1 if not connected.
+     */
+    public synchronized long getLastTraffic() {
+        return mConn == null ? -1 : mConn.getLastStanzaReceived();
+    }
+
+    private void schedule(long delay) {
+        final KonConnection conn = mConn;
+        mFuture = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                KeepAlive.this.check(conn);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void check(KonConnection conn) {
+        long idle;
+        synchronized (this) {
+            if (conn != mConn)
+                // stopped
+                return;
+            if (!conn.isAuthenticated()) {
+                mConn = null;
+                return;
+            }
+            idle = System.currentTimeMillis() -
+                    Math.max(conn.getLastStanzaReceived(), mStarted);
+            if (idle < mInterval) {
+                this.schedule(mInterval - idle);
+                return;
+            }
+        }
+
+        // without lock, waiting for the pong
+        long start = System.nanoTime();
+        boolean pong;
+        try {
+            pong = PingManager.getInstanceFor(conn).pingMyServer(false, PING_TIMEOUT);
+        } catch (SmackException.NotConnectedException ex) {
+            LOGGER.log(Level.INFO, "not connected, stop pinging", ex);
+            return;
+        }
+        long rtt = (System.nanoTime() - start) / 1000000;
+
+        synchronized (this) {
+            if (conn != mConn)
+                return;
+            mPings++;
+            if (pong) {
+                this.pong(rtt, idle);
+                this.schedule(mInterval);
+                return;
+            }
+            this.missed(idle);
+            mConn = null;
+        }
+        mClient.connectionDead(conn);
+    }
+
+    private void pong(long rtt, long idle) {
+        mLastRTT = rtt;
+        for (int i = 0; i < RTT_BUCKETS.length; i++) {
+            if (rtt <= RTT_BUCKETS[i]) {
+                mRTTHistogram[i]++;
+                break;
+            }
+        }
+
+        // the connection survived this idle time, try longer
+        if (mInterval < mLimit) {
+            mInterval = Math.min(Math.max(mInterval, idle) + STEP, mLimit);
+        } else if (mLimit < MAX_INTERVAL && ++mSuccessesAtLimit >= PROBE_AFTER) {
+            mLimit = Math.min(mLimit + STEP, MAX_INTERVAL);
+            mSuccessesAtLimit = 0;
+        }
+    }
+
+    private void missed(long idle) {
+        mMissedPongs++;
+        // the connection was probably dropped in less than the idle time
+        mLimit = Math.max(idle * 3 / 4, MIN_INTERVAL);
+        mInterval = mLimit;
+        mSuccessesAtLimit = 0;
+        LOGGER.warning("no pong after "+idle+" ms idle, interval now: "+mInterval+" ms");
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.jxmpp.util.XmppStringUtils;
+
+/**
+ * Coordinates public key requests.
+ * Requests are queued and sent in small batches, at most one request per user
+ * is waiting for a response. If a user has no key (error, empty response or
+ * no response at all) the user is not asked again for some time, unless a
+ * different fingerprint is announced.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class KeyRequester {
+    private final static Logger LOGGER = Logger.getLogger(KeyRequester.class.getName());
+
+    /** Maximum number of requests sent in one interval. */
+    private final static int BATCH_SIZE = 5;
+    private final static long INTERVAL = 1000;
+    /** Time to wait for a response in milliseconds. */
+    private final static long TIMEOUT = 30 * 1000;
+    /** Time a missing key is not requested again. */
+    private final static long MISSING_TTL = 30 * 60 * 1000;
+
+    private final Client mClient;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Key Requests");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Bare JID to announced fingerprint (or empty), in request order. */
+    private final Map<String, String> mQueue = new LinkedHashMap<>();
+    private final Map<String, Request> mPending = new HashMap<>();
+    private final Map<String, Request> mMissing = new HashMap<>();
+
+    KeyRequester(Client client) {
+        mClient = client;
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                KeyRequester.this.sendBatch();
+            }
+        }, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Request the public key of a user.
+     * @param fingerprint the fingerprint announced by the user, empty if
+     * unknown
+     */
+    synchronized void request(String jid, String fingerprint) {
+        jid = XmppStringUtils.parseBareJid(jid);
+        if (mQueue.containsKey(jid) || mPending.containsKey(jid))
+            return;
+
+        Request missing = mMissing.get(jid);
+        if (missing != null) {
+            if (missing.time > System.currentTimeMillis() &&
+                    missing.fingerprint.equals(fingerprint))
+                return;
+            mMissing.remove(jid);
+        }
+        mQueue.put(jid, fingerprint);
+    }
+
+    /**
+     * A response to a request arrived.
+     * @param found true if the response contains a key
+     */
+    synchronized void responded(String jid, boolean found) {
+        jid = XmppStringUtils.parseBareJid(jid);
+        Request request = mPending.remove(jid);
+        if (found) {
+            mMissing.remove(jid);
+            return;
+        }
+        LOGGER.info("no public key for "+jid);
+        String fingerprint = request != null ? request.fingerprint : "";
+        mMissing.put(jid, new Request(System.currentTimeMillis() + MISSING_TTL, fingerprint));
+    }
+
+    /**
+     * Responses for requests sent with an old stream are lost, send them
+     * again.
+     */
+    synchronized void newStream() {
+        for (Map.Entry<String, Request> entry : mPending.entrySet())
+            mQueue.put(entry.getKey(), entry.getValue().fingerprint);
+        mPending.clear();
+    }
+
+    /** Number of requests not sent yet. */
+    public synchronized int getQueued() {
+        return mQueue.size();
+    }
+
+    /** Number of requests waiting for a response. */
+    public synchronized int getPending() {
+        return mPending.size();
+    }
+
+    private synchronized void sendBatch() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Request>> pendingIter = mPending.entrySet().iterator();
+        while (pendingIter.hasNext()) {
+            Map.Entry<String, Request> entry = pendingIter.next();
+            if (entry.getValue().time + TIMEOUT > now)
+                continue;
+            LOGGER.info("public key request timed out for "+entry.getKey());
+            pendingIter.remove();
+            mMissing.put(entry.getKey(),
+                    new Request(now + MISSING_TTL, entry.getValue().fingerprint));
+        }
+
+        if (mQueue.isEmpty() || !mClient.isConnected())
+            return;
+
+        Iterator<Map.Entry<String, String>> queueIter = mQueue.entrySet().iterator();
+        for (int i = 0; i < BATCH_SIZE && queueIter.hasNext(); i++) {
+            Map.Entry<String, String> entry = queueIter.next();
+            queueIter.remove();
+            mPending.put(entry.getKey(), new Request(now, entry.getValue()));
+            mClient.sendPublicKeyRequest(entry.getKey());
+        }
+    }
+
+    private static final class Request {
+        /** Time sent or, for missing keys, time of expiry. */
+        final long time;
+        final String fingerprint;
+
+        Request(long time, String fingerprint) {
+            this.time = time;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
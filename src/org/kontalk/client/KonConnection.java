@@ -19,15 +19,7 @@
 package org.kontalk.client;
 
 import java.io.IOException;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.PrivateKey;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.util.logging.Level;
+import java.util.Optional;
 import java.util.logging.Logger;
 import javax.net.ssl.SSLContext;
 import javax.security.auth.callback.Callback;
@@ -36,9 +28,9 @@ import javax.security.auth.callback.UnsupportedCallbackException;
 import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
 import org.jivesoftware.smack.SASLAuthentication;
 import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.rosterstore.RosterStore;
 import org.jivesoftware.smack.tcp.XMPPTCPConnection;
 import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
-import org.kontalk.util.TrustUtils;
 
 
 /**
@@ -50,31 +42,43 @@ public final class KonConnection extends XMPPTCPConnection {
 
     private final static String RESSOURCE = "Kontalk_Desktop";
 
+    /** Preferred time the server keeps a broken stream for resumption, in seconds. */
+    private final static int RESUMPTION_TIME = 5 * 60;
+
+    private final EndpointServer mServer;
+    private final SSLContext mSSLContext;
+
+    /** If the stream was resumed at the last login. */
+    private boolean mResumed = false;
+
     public KonConnection(EndpointServer server,
-            PrivateKey privateKey,
-            X509Certificate bridgeCert,
-            boolean validateCertificate) {
+            SSLContext sslContext,
+            boolean validateCertificate,
+            Optional<? extends RosterStore> rosterStore) {
         super(buildConfiguration(RESSOURCE,
                 server,
-                privateKey,
-                bridgeCert,
-                validateCertificate)
+                sslContext,
+                validateCertificate,
+                rosterStore)
         );
+        mServer = server;
+        mSSLContext = sslContext;
 
         // blacklist PLAIN mechanism
         SASLAuthentication.blacklistSASLMechanism("PLAIN");
 
-        // enable SM without resumption (XEP-0198)
+        // enable SM with resumption (XEP-0198)
         this.setUseStreamManagement(true);
-        this.setUseStreamManagementResumption(false);
+        this.setUseStreamManagementResumption(true);
+        this.setPreferredResumptionTime(RESUMPTION_TIME);
     }
 
     private static XMPPTCPConnectionConfiguration buildConfiguration(
             String resource,
             EndpointServer server,
-            PrivateKey privateKey,
-            X509Certificate bridgeCert,
-            boolean validateCertificate) {
+            SSLContext sslContext,
+            boolean validateCertificate,
+            Optional<? extends RosterStore> rosterStore) {
         XMPPTCPConnectionConfiguration.XMPPTCPConnectionConfigurationBuilder builder =
             XMPPTCPConnectionConfiguration.builder();
 
@@ -109,25 +113,48 @@ public final class KonConnection extends XMPPTCPConnection {
         // setup SSL
         if (!validateCertificate)
             LOGGER.warning("disabling SSL certificate validation");
-        try {
-            SSLContext sslContext = TrustUtils.getCustomSSLContext(privateKey,
-                    bridgeCert,
-                    validateCertificate);
-            builder.setCustomSSLContext(sslContext);
-            // Note: SASL EXTERNAL is already enabled in Smack
-        } catch (NoSuchAlgorithmException |
-                KeyStoreException |
-                IOException |
-                CertificateException |
-                UnrecoverableKeyException |
-                KeyManagementException |
-                NoSuchProviderException ex) {
-            LOGGER.log(Level.WARNING, "can't setup SSL connection", ex);
-        }
+        builder.setCustomSSLContext(sslContext);
+        // Note: SASL EXTERNAL is already enabled in Smack
+
+        // roster versioning (XEP-0237)
+        if (rosterStore.isPresent())
+            builder.setRosterStore(rosterStore.get());
 
         return builder.build();
     }
 
+    @Override
+    protected void afterSuccessfulLogin(boolean resumed)
+            throws SmackException.NotConnectedException {
+        mResumed = resumed;
+        super.afterSuccessfulLogin(resumed);
+    }
+
+    /**
+     * The roster is not reloaded for a resumed stream, missed roster pushes
+     * are delivered by the server.
+     */
+    @Override
+    public boolean isRosterLoadedAtLogin() {
+        return super.isRosterLoadedAtLogin() && !mResumed;
+    }
+
+    /**
+     * Return true if the connection was closed on error and the stream can be
+     * resumed with the same server and SSL context. Resumption is done by
+     * connecting and logging in again with this connection.
+     */
+    public boolean canResume(EndpointServer server, SSLContext sslContext) {
+        return this.isDisconnectedButSmResumptionPossible() &&
+                mServer.toString().equals(server.toString()) &&
+                mSSLContext == sslContext;
+    }
+
+    /** Return true if the stream was resumed at the last login. */
+    public boolean wasResumed() {
+        return mResumed;
+    }
+
     @Override
     public void disconnect() {
         LOGGER.info("disconnecting");
@@ -138,6 +165,16 @@ public final class KonConnection extends XMPPTCPConnection {
         }
     }
 
+    /**
+     * Close the socket at once and notify the listeners about the error.
+     * Unlike {@link #disconnect()} the stream can be resumed.
+     */
+    void abort(Exception ex) {
+        LOGGER.info("aborting connection");
+        this.instantShutdown();
+        this.callConnectionClosedOnErrorListener(ex);
+    }
+
     public String getDestination() {
         return this.getConfiguration().getServiceName();
     }
@@ -33,9 +33,15 @@ public final class KonConnectionListener implements ConnectionListener {
     private final static Logger LOGGER = Logger.getLogger(KonConnectionListener.class.getName());
 
     private final ControlCenter mControl;
+    private final ReconnectionManager mReconnect;
+    private final PresenceBuffer mPresences;
 
-    public KonConnectionListener(ControlCenter control) {
+    KonConnectionListener(ControlCenter control,
+            ReconnectionManager reconnect,
+            PresenceBuffer presences) {
         mControl = control;
+        mReconnect = reconnect;
+        mPresences = presences;
     }
 
     @Override
@@ -56,8 +62,14 @@ public final class KonConnectionListener implements ConnectionListener {
     @Override
     public void connectionClosedOnError(Exception ex) {
         LOGGER.log(Level.WARNING, "connection closed on error", ex);
+        PacketTrace.getInstance().dump("connection closed on error");
         mControl.setStatus(ControlCenter.Status.ERROR);
-        mControl.handleException(new KonException(KonException.Error.CLIENT_ERROR, ex));
+        // only tell the user if we don't try again
+        if (!mReconnect.connectionLost()) {
+            // the stream is not resumed
+            mPresences.releaseHeld();
+            mControl.handleException(new KonException(KonException.Error.CLIENT_ERROR, ex));
+        }
     }
 
     @Override
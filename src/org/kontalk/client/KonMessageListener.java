@@ -46,12 +46,12 @@ final public class KonMessageListener implements PacketListener {
     // plain text body added by Android client
     private final static String IGNORE_PLAIN_TEXT = "(encrypted)";
 
-    private final Client mClient;
     private final ControlCenter mControl;
+    private final ReceiptBatcher mReceipts;
 
-    KonMessageListener(Client client, ControlCenter control) {
-        mClient = client;
+    KonMessageListener(ControlCenter control, ReceiptBatcher receipts) {
         mControl = control;
+        mReceipts = receipts;
 
         ProviderManager.addExtensionProvider(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE, new OutOfBandData.Provider());
         //ProviderManager.addExtensionProvider(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE, new BitsOfBinary.Provider());
@@ -82,7 +82,6 @@ final public class KonMessageListener implements PacketListener {
     }
 
     private void processChatMessage(Message m) {
-        LOGGER.info("got message: "+m.toXML());
         // note: thread and subject are null if message comes from the Kontalk
         // Android client
 
@@ -162,12 +161,10 @@ final public class KonMessageListener implements PacketListener {
                 date,
                 content);
 
-        // on success, send a 'received' for a request (XEP-0184)
+        // if saved, send a 'received' for a request (XEP-0184)
         DeliveryReceiptRequest request = DeliveryReceiptRequest.from(m);
         if (request != null && success && !xmppID.isEmpty()) {
-            Message received = new Message(m.getFrom(), Message.Type.chat);
-            received.addExtension(new DeliveryReceipt(xmppID));
-            mClient.sendPacket(received);
+            mReceipts.queue(m.getFrom(), xmppID);
         }
     }
 
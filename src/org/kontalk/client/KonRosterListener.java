@@ -19,6 +19,9 @@
 package org.kontalk.client;
 
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
 import java.util.logging.Logger;
 import org.jivesoftware.smack.Roster;
 import org.jivesoftware.smack.RosterEntry;
@@ -37,28 +40,49 @@ final class KonRosterListener implements RosterListener {
     private final Roster mRoster;
     private final Client mClient;
     private final ControlCenter mControl;
-
-    KonRosterListener(Roster roster, Client client, ControlCenter control) {
+    private final PresenceBuffer mBuffer;
+    private final Optional<RosterCache> mCache;
+
+    KonRosterListener(Roster roster,
+            Client client,
+            ControlCenter control,
+            PresenceBuffer buffer,
+            Optional<RosterCache> cache) {
         mRoster = roster;
         mClient = client;
         mControl = control;
+        mBuffer = buffer;
+        mCache = cache;
     }
 
     /**
-     * Note: on every (re-)connect all entries are added again
+     * Note: on every (re-)connect all entries are added again, also if they
+     * are only loaded from the roster cache
      */
     @Override
     public void entriesAdded(Collection<String> addresses) {
         if (mRoster == null)
             return;
 
+        // without cache every entry is new
+        Set<String> changed = mCache.isPresent() ?
+                mCache.get().pollChanged() :
+                new HashSet<>(addresses);
+        LOGGER.info("roster entries: "+addresses.size()+", changed: "+changed.size());
+
         for (String jid: addresses) {
             RosterEntry entry = mRoster.getEntry(jid);
             if (entry == null) {
                 LOGGER.warning("jid not in roster: "+jid);
-                return;
+                continue;
             }
 
+            // does nothing if the user is known
+            mControl.addUserFromRoster(entry.getUser(), entry.getName());
+
+            if (!changed.contains(jid))
+                continue;
+
             LOGGER.info("roster entry: "+entry.toString());
 
             if (entry.getType() != RosterPacket.ItemType.to &&
@@ -70,8 +94,6 @@ final class KonRosterListener implements RosterListener {
                     mClient.sendPresenceSubscriptionRequest(jid);
                 }
             }
-
-            mControl.addUserFromRoster(entry.getUser(), entry.getName());
         }
     }
 
@@ -92,20 +114,19 @@ final class KonRosterListener implements RosterListener {
      */
     @Override
     public void presenceChanged(Presence presence) {
-        LOGGER.info("got presence change: "+presence.toXML());
-
         if (presence.getFrom() == null || mRoster == null)
             // dunno why this happens
             return;
 
-        String jid = presence.getFrom();
-        Presence bestPresence = mRoster.getPresence(jid);
+        Presence best = mRoster.getPresence(presence.getFrom());
+        if (presence.getType() == Presence.Type.unavailable && mClient.isResumable()) {
+            // generated by Smack for the lost connection
+            mBuffer.hold(best);
+            return;
+        }
 
-        // NOTE: a delay extension is sometimes included, don't know why
-        // ignoring mode, always null anyway
-        mControl.setPresence(bestPresence.getFrom(),
-                bestPresence.getType(),
-                bestPresence.getStatus());
+        // replaces the presence from the presence listener, if any
+        mBuffer.put(best);
     }
 
 }
@@ -0,0 +1,362 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smackx.chatstates.ChatState;
+import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
+import org.jivesoftware.smackx.receipts.DeliveryReceiptRequest;
+import org.kontalk.crypto.Coder;
+import org.kontalk.model.KonMessage.Status;
+import org.kontalk.model.MessageContent.Attachment;
+import org.kontalk.model.OutMessage;
+import org.kontalk.system.ControlCenter;
+import org.kontalk.system.KonConf;
+
+/**
+ * Pipeline for outgoing messages.
+ * Messages are encrypted in parallel on a worker pool and sent by a single
+ * thread in the order they were queued.
+ * With stream management (XEP-0198) the number of messages sent but not
+ * acknowledged by the server is limited. A message not acknowledged in time
+ * is sent again, then set to error; it is still set to sent if the
+ * acknowledgement arrives later. The number of queued messages is limited
+ * too, further messages wait (still pending) without blocking the caller and
+ * are queued in order when there is space again.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+final class MessageSender implements Runnable {
+    private final static Logger LOGGER = Logger.getLogger(MessageSender.class.getName());
+
+    /** Maximum number of messages queued for sending. */
+    private final static int QUEUE_LIMIT = 500;
+    /** Maximum number of sent messages not acknowledged by the server. */
+    private final static int WINDOW = 50;
+    /** Time to wait for an acknowledgement in milliseconds. */
+    private final static long ACK_TIMEOUT = 30 * 1000;
+    private final static long CHECK_INTERVAL = 5 * 1000;
+    /** Number of times a message is sent before it is set to error. */
+    private final static int MAX_ATTEMPTS = 2;
+
+    private final Client mClient;
+    private final ControlCenter mControl;
+
+    private final ExecutorService mEncryptPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+    private final ScheduledExecutorService mTimer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Send Timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Messages in sending order. */
+    private final LinkedBlockingQueue<Queued> mQueue =
+            new LinkedBlockingQueue<>();
+    private final Semaphore mQueueSpace = new Semaphore(QUEUE_LIMIT);
+    /** Messages waiting for space in the queue, guarded by this. */
+    private final LinkedList<OutMessage> mWaiting = new LinkedList<>();
+    private final Semaphore mWindow = new Semaphore(WINDOW);
+
+    /** XMPP IDs of queued messages. */
+    private final Set<String> mQueuedIDs = new HashSet<>();
+    /** Sent messages waiting for acknowledgement, by XMPP ID. */
+    private final Map<String, Queued> mInFlight = new HashMap<>();
+    /** XMPP IDs of messages set to error without acknowledgement. */
+    private final Set<String> mTimedOut = new HashSet<>();
+
+    MessageSender(Client client, ControlCenter control) {
+        mClient = client;
+        mControl = control;
+
+        mTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                MessageSender.this.checkTimeouts();
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** Queue a message for sending. Does not block. */
+    synchronized void queueMessage(OutMessage message) {
+        String xmppID = message.getXMPPID();
+        if (mQueuedIDs.contains(xmppID) || mInFlight.containsKey(xmppID)) {
+            LOGGER.info("message already queued or sent, id: "+xmppID);
+            return;
+        }
+        mQueuedIDs.add(xmppID);
+        // sent again, a late acknowledgement is for this one too
+        mTimedOut.remove(xmppID);
+
+        // earlier waiting messages first
+        if (!mWaiting.isEmpty() || !mQueueSpace.tryAcquire()) {
+            LOGGER.info("queue full, message waiting, id: "+xmppID);
+            mWaiting.add(message);
+            return;
+        }
+        this.enqueue(message);
+    }
+
+    /** Start encrypting and queue a message, a queue permit must be held. */
+    private void enqueue(final OutMessage message) {
+        Future<Optional<Message>> future = mEncryptPool.submit(
+                new Callable<Optional<Message>>() {
+                    @Override
+                    public Optional<Message> call() {
+                        return MessageSender.this.prepare(message);
+                    }
+                });
+        mQueue.offer(new Queued(message, future));
+    }
+
+    /** The server acknowledged a packet. */
+    void acknowledged(String xmppID) {
+        synchronized (this) {
+            if (mTimedOut.remove(xmppID))
+                // the message is set from error to sent by the listener
+                LOGGER.info("late acknowledgement, id: "+xmppID);
+            if (mInFlight.remove(xmppID) == null)
+                return;
+        }
+        mWindow.release();
+    }
+
+    /**
+     * The stream was resumed. Stream management sends unacknowledged messages
+     * again, wait for the acknowledgement from now on.
+     */
+    synchronized void resumed() {
+        long now = System.currentTimeMillis();
+        for (Queued queued : mInFlight.values())
+            queued.sent = now;
+    }
+
+    /**
+     * A new stream was opened, acknowledgements for sent messages will never
+     * arrive. The messages are still pending and sent again after connecting.
+     */
+    void newStream() {
+        int released;
+        synchronized (this) {
+            released = mInFlight.size();
+            mInFlight.clear();
+            mTimedOut.clear();
+        }
+        mWindow.release(released);
+    }
+
+    private void checkTimeouts() {
+        // acknowledgements can't arrive while disconnected
+        if (!mClient.isConnected())
+            return;
+
+        long now = System.currentTimeMillis();
+        List<Queued> resend = new ArrayList<>();
+        List<Queued> failed = new ArrayList<>();
+        synchronized (this) {
+            for (Queued queued : mInFlight.values()) {
+                if (queued.sent + ACK_TIMEOUT > now)
+                    continue;
+                if (queued.attempts < MAX_ATTEMPTS) {
+                    queued.attempts++;
+                    queued.sent = now;
+                    resend.add(queued);
+                } else {
+                    failed.add(queued);
+                }
+            }
+            for (Queued queued : failed) {
+                mInFlight.remove(queued.message.getXMPPID());
+                // the acknowledgement may still arrive
+                mTimedOut.add(queued.message.getXMPPID());
+            }
+        }
+
+        for (Queued queued : resend) {
+            // receivers drop messages with an XMPP ID they already have
+            LOGGER.info("no acknowledgement, sending again, id: "+queued.message.getXMPPID());
+            mClient.sendPacket(queued.packet);
+        }
+        for (Queued queued : failed) {
+            LOGGER.warning("no acknowledgement, giving up, id: "+queued.message.getXMPPID());
+            queued.message.setStatus(Status.ERROR);
+            mWindow.release();
+        }
+    }
+
+    /** Create the XMPP message, encrypting the content if needed. */
+    private Optional<Message> prepare(OutMessage message) {
+        Message smackMessage = new Message();
+        smackMessage.setPacketID(message.getXMPPID());
+        smackMessage.setType(Message.Type.chat);
+        smackMessage.setTo(message.getJID());
+        smackMessage.addExtension(new DeliveryReceiptRequest());
+        KonConf conf = KonConf.getInstance();
+        if (conf.getBoolean(KonConf.NET_SEND_CHAT_STATE))
+            smackMessage.addExtension(new ChatStateExtension(ChatState.active));
+
+        // Out of Band Data: a URI to the uploaded file
+        Optional<Attachment> optAttachment = message.getContent().getAttachment();
+        if (optAttachment.isPresent()) {
+            Attachment attachment = optAttachment.get();
+            if (attachment.getURL().isEmpty()) {
+                LOGGER.warning("attachment not uploaded, not sending message");
+                return Optional.empty();
+            }
+            smackMessage.addExtension(new OutOfBandData(attachment.getURL(),
+                    attachment.getMimeType(),
+                    attachment.getLength(),
+                    attachment.getCoderStatus().getEncryption() != Coder.Encryption.NOT));
+        }
+
+        if (optAttachment.isPresent() &&
+                message.getContent().getPlainText().isEmpty()) {
+            // other clients show the URL, the file is encrypted on its own
+            if (optAttachment.get().getCoderStatus().getEncryption() == Coder.Encryption.NOT)
+                smackMessage.setBody(optAttachment.get().getURL());
+        } else if (message.getCoderStatus().getEncryption() == Coder.Encryption.NOT &&
+                message.getCoderStatus().getSigning() == Coder.Signing.NOT) {
+            // TODO send more possible content
+            smackMessage.setBody(message.getContent().getPlainText());
+        } else {
+            Optional<byte[]> encrypted = Coder.processOutMessage(message);
+            // check also for security errors just to be sure
+            if (!encrypted.isPresent() ||
+                    !message.getCoderStatus().getErrors().isEmpty()) {
+                LOGGER.warning("encryption failed, not sending message");
+                message.setStatus(Status.ERROR);
+                mControl.handleSecurityErrors(message);
+                return Optional.empty();
+            }
+            smackMessage.addExtension(new E2EEncryption(encrypted.get()));
+        }
+        return Optional.of(smackMessage);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Queued queued;
+            try {
+                // blocking
+                queued = mQueue.take();
+            } catch (InterruptedException ex) {
+                LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
+                return;
+            }
+            Optional<Message> optMessage;
+            try {
+                // wait for this message, the following can still be encrypted
+                optMessage = queued.future.get();
+            } catch (InterruptedException ex) {
+                LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
+                return;
+            } catch (ExecutionException ex) {
+                LOGGER.log(Level.WARNING, "can't prepare message", ex.getCause());
+                optMessage = Optional.empty();
+            }
+            this.freeQueueSpace();
+
+            if (!optMessage.isPresent()) {
+                synchronized (this) {
+                    mQueuedIDs.remove(queued.message.getXMPPID());
+                }
+                continue;
+            }
+            queued.packet = optMessage.get();
+            try {
+                this.send(queued);
+            } catch (InterruptedException ex) {
+                LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
+                return;
+            }
+        }
+    }
+
+    /** Pass the permit of a dequeued message to the next waiting message. */
+    private synchronized void freeQueueSpace() {
+        OutMessage next = mWaiting.poll();
+        if (next == null) {
+            mQueueSpace.release();
+            return;
+        }
+        this.enqueue(next);
+    }
+
+    private void send(Queued queued) throws InterruptedException {
+        String xmppID = queued.message.getXMPPID();
+        boolean tracked = mClient.isSmEnabled();
+        if (tracked)
+            // wait for acknowledgements of previous messages
+            mWindow.acquire();
+
+        synchronized (this) {
+            mQueuedIDs.remove(xmppID);
+            if (tracked) {
+                queued.sent = System.currentTimeMillis();
+                mInFlight.put(xmppID, queued);
+            }
+        }
+        boolean sent = mClient.sendPacket(queued.packet);
+        if (!sent) {
+            // still pending, sent again after connecting
+            LOGGER.info("message not sent, id: "+xmppID);
+            if (tracked)
+                this.acknowledged(xmppID);
+        }
+    }
+
+    /** A queued message and its sending state. */
+    private static final class Queued {
+        final OutMessage message;
+        final Future<Optional<Message>> future;
+        Message packet = null;
+        long sent = 0;
+        int attempts = 1;
+
+        Queued(OutMessage message, Future<Optional<Message>> future) {
+            this.message = message;
+            this.future = future;
+        }
+    }
+}
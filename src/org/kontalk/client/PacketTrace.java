@@ -0,0 +1,162 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.kontalk.system.KonConf;
+
+/**
+ * Trace of sent and received packets.
+ * Every packet is recorded in a ring buffer of the last packets, which can be
+ * dumped on demand, e.g. after a connection error. Packets are only formatted
+ * as XML when they are logged or dumped. Logging uses one logger per
+ * category ("org.kontalk.trace.message", ...) and is disabled by default; the
+ * level for all categories is set in the configuration, and only every n-th
+ * packet of a category is logged if sampling is configured.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class PacketTrace {
+    private final static Logger LOGGER = Logger.getLogger(PacketTrace.class.getName());
+
+    private final static String LOGGER_PREFIX = "org.kontalk.trace";
+    /** Number of packets in the ring buffer. */
+    private final static int CAPACITY = 256;
+
+    public enum Category {MESSAGE, PRESENCE, IQ, ACK, OTHER};
+
+    private enum Direction {IN, OUT};
+
+    private final static PacketTrace INSTANCE = new PacketTrace();
+
+    /** Parent of the category loggers, referenced to keep its level. */
+    private final Logger mParent = Logger.getLogger(LOGGER_PREFIX);
+    private final Logger[] mLoggers = new Logger[Category.values().length];
+    private final AtomicLong[] mCounters = new AtomicLong[Category.values().length];
+    private final int mSample;
+
+    private final Entry[] mBuffer = new Entry[CAPACITY];
+    private int mNext = 0;
+
+    private PacketTrace() {
+        KonConf conf = KonConf.getInstance();
+        Level level;
+        try {
+            level = Level.parse(conf.getString(KonConf.NET_TRACE_LEVEL));
+        } catch (IllegalArgumentException ex) {
+            LOGGER.warning("invalid trace level: "+conf.getString(KonConf.NET_TRACE_LEVEL));
+            level = Level.OFF;
+        }
+        // categories inherit the level unless set in the logging config
+        mParent.setLevel(level);
+        for (Category c : Category.values()) {
+            mLoggers[c.ordinal()] = Logger.getLogger(LOGGER_PREFIX + "." + c.name().toLowerCase());
+            mCounters[c.ordinal()] = new AtomicLong();
+        }
+        mSample = Math.max(conf.getInt(KonConf.NET_TRACE_SAMPLE), 1);
+    }
+
+    void sent(Packet packet) {
+        this.trace(Direction.OUT, category(packet), packet);
+    }
+
+    void received(Packet packet) {
+        this.trace(Direction.IN, category(packet), packet);
+    }
+
+    /** The server acknowledged a sent packet (XEP-0198). */
+    void acknowledged(Packet packet) {
+        this.trace(Direction.IN, Category.ACK, packet);
+    }
+
+    /**
+     * Write the ring buffer to the log, oldest packet first.
+     * @param reason why the buffer is dumped
+     */
+    public void dump(String reason) {
+        Entry[] entries = new Entry[CAPACITY];
+        int next;
+        synchronized (this) {
+            System.arraycopy(mBuffer, 0, entries, 0, CAPACITY);
+            next = mNext;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        StringBuilder sb = new StringBuilder("packet trace (" + reason + "):");
+        for (int i = 0; i < CAPACITY; i++) {
+            Entry e = entries[(next + i) % CAPACITY];
+            if (e == null)
+                continue;
+            sb.append('\n').append(format.format(new Date(e.time)))
+                    .append(' ').append(e.direction)
+                    .append(' ').append(e.category)
+                    .append(' ').append(e.packet.toXML());
+        }
+        LOGGER.info(sb.toString());
+    }
+
+    private void trace(Direction direction, Category category, Packet packet) {
+        synchronized (this) {
+            mBuffer[mNext] = new Entry(direction, category, packet);
+            mNext = (mNext + 1) % CAPACITY;
+        }
+
+        Logger logger = mLoggers[category.ordinal()];
+        if (!logger.isLoggable(Level.INFO))
+            return;
+        if (mCounters[category.ordinal()].getAndIncrement() % mSample != 0)
+            return;
+        logger.info(direction + " " + packet.toXML());
+    }
+
+    private static Category category(Packet packet) {
+        if (packet instanceof Message)
+            return Category.MESSAGE;
+        if (packet instanceof Presence)
+            return Category.PRESENCE;
+        if (packet instanceof IQ)
+            return Category.IQ;
+        return Category.OTHER;
+    }
+
+    public static PacketTrace getInstance() {
+        return INSTANCE;
+    }
+
+    private static final class Entry {
+        final long time = System.currentTimeMillis();
+        final Direction direction;
+        final Category category;
+        /** Formatted only when dumped. */
+        final Packet packet;
+
+        Entry(Direction direction, Category category, Packet packet) {
+            this.direction = direction;
+            this.category = category;
+            this.packet = packet;
+        }
+    }
+}
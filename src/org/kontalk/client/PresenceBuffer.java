@@ -0,0 +1,109 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.jivesoftware.smack.packet.Presence;
+import org.jxmpp.util.XmppStringUtils;
+import org.kontalk.system.ControlCenter;
+
+/**
+ * Collects presence changes and hands them to the control center
+ * periodically. Only the latest presence of a user is kept, so a flood of
+ * presence packets (e.g. after login) results in one update of the user list.
+ * Offline presences generated by Smack for a lost connection are held back
+ * while the stream can be resumed; the server does not send the presences
+ * again for a resumed stream.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+final class PresenceBuffer {
+
+    /** Maximum time a presence is delayed in milliseconds. */
+    private final static long FLUSH_DELAY = 250;
+
+    private final ControlCenter mControl;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Presence");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Latest presence by bare JID. */
+    private Map<String, Presence> mPresences = new HashMap<>();
+    /** Offline presences of the lost connection by bare JID. */
+    private Map<String, Presence> mHeld = new HashMap<>();
+
+    PresenceBuffer(ControlCenter control) {
+        mControl = control;
+    }
+
+    /** Add the (best) presence of a user, replacing the last one. */
+    synchronized void put(Presence presence) {
+        String jid = XmppStringUtils.parseBareJid(presence.getFrom());
+        boolean first = mPresences.isEmpty();
+        mPresences.put(jid, presence);
+        if (first)
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    PresenceBuffer.this.flush();
+                }
+            }, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /** Hold back the offline presence of a user for a lost connection. */
+    synchronized void hold(Presence presence) {
+        mHeld.put(XmppStringUtils.parseBareJid(presence.getFrom()), presence);
+    }
+
+    /** The stream was resumed, the held presences are obsolete. */
+    synchronized void dropHeld() {
+        mHeld.clear();
+    }
+
+    /** The stream can't be resumed, add the held presences. */
+    void releaseHeld() {
+        Map<String, Presence> held;
+        synchronized (this) {
+            held = mHeld;
+            mHeld = new HashMap<>();
+        }
+        for (Presence presence : held.values())
+            this.put(presence);
+    }
+
+    private void flush() {
+        Map<String, Presence> presences;
+        synchronized (this) {
+            presences = mPresences;
+            mPresences = new HashMap<>();
+        }
+        mControl.setPresence(presences);
+    }
+}
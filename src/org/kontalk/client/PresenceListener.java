@@ -39,11 +39,13 @@ public class PresenceListener implements PacketListener {
     private final Client mClient;
     private final Roster mRoster;
     private final ControlCenter mControl;
+    private final PresenceBuffer mBuffer;
 
-    public PresenceListener(Client client, Roster roster, ControlCenter control) {
+    PresenceListener(Client client, Roster roster, ControlCenter control, PresenceBuffer buffer) {
         mClient = client;
         mRoster = roster;
         mControl = control;
+        mBuffer = buffer;
 
         ProviderManager.addExtensionProvider(
                 PublicKeyPresence.ELEMENT_NAME,
@@ -53,8 +55,6 @@ public class PresenceListener implements PacketListener {
 
     @Override
     public void processPacket(Packet packet) {
-        LOGGER.info("got presence packet: "+packet.toXML());
-
         Presence presence = (Presence) packet;
 
         String jid = XmppStringUtils.parseBareJid(presence.getFrom());
@@ -62,13 +62,8 @@ public class PresenceListener implements PacketListener {
             // this is a presence for/from myself, ignore it
             return;
 
-        Presence bestPresence = mRoster.getPresence(jid);
-
         // NOTE: a delay extension is sometimes included, don't know why
-        // ignoring mode, always null anyway
-        mControl.setPresence(bestPresence.getFrom(),
-                bestPresence.getType(),
-                bestPresence.getStatus());
+        mBuffer.put(mRoster.getPresence(jid));
 
         PacketExtension publicKeyExt = presence.getExtension(
                 PublicKeyPresence.ELEMENT_NAME,
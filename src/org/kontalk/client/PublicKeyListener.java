@@ -33,9 +33,11 @@ public class PublicKeyListener implements PacketListener {
     private final static Logger LOGGER = Logger.getLogger(PublicKeyListener.class.getName());
 
     private final ControlCenter mControl;
+    private final KeyRequester mRequester;
 
-    public PublicKeyListener(ControlCenter control) {
+    public PublicKeyListener(ControlCenter control, KeyRequester requester) {
         mControl = control;
+        mRequester = requester;
 
         ProviderManager.addIQProvider(PublicKeyPublish.ELEMENT_NAME,
                 PublicKeyPublish.NAMESPACE,
@@ -44,8 +46,6 @@ public class PublicKeyListener implements PacketListener {
 
     @Override
     public void processPacket(Packet packet) {
-        LOGGER.info("got public key: "+packet.toXML());
-
         PublicKeyPublish publicKeyPacket = (PublicKeyPublish) packet;
 
         if (publicKeyPacket.getType() == IQ.Type.set) {
@@ -53,8 +53,15 @@ public class PublicKeyListener implements PacketListener {
             return;
         }
 
+        if (publicKeyPacket.getType() == IQ.Type.error) {
+            LOGGER.info("got error for public key request");
+            mRequester.responded(publicKeyPacket.getFrom(), false);
+            return;
+        }
+
         if (publicKeyPacket.getType() == IQ.Type.result) {
             byte[] keyData = publicKeyPacket.getPublicKey();
+            mRequester.responded(publicKeyPacket.getFrom(), keyData != null);
             if (keyData == null) {
                 LOGGER.warning("got public key packet without public key");
                 return;
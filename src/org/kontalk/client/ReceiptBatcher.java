@@ -0,0 +1,122 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smackx.receipts.DeliveryReceipt;
+
+/**
+ * Sends delivery receipts (XEP-0184) for received messages in batches.
+ * A batch is sent when it is full or when its first receipt waited for the
+ * maximum delay. The packets of a batch are queued at once, so the connection
+ * writes them to the socket together. Receipts that can't be sent are kept
+ * until the next connection.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+final class ReceiptBatcher {
+    private final static Logger LOGGER = Logger.getLogger(ReceiptBatcher.class.getName());
+
+    private final static int MAX_BATCH = 50;
+    /** Maximum time a receipt is delayed in milliseconds. */
+    private final static long MAX_DELAY = 500;
+
+    private final Client mClient;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Receipts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private List<Packet> mBatch = new ArrayList<>();
+    private ScheduledFuture<?> mFuture = null;
+
+    ReceiptBatcher(Client client) {
+        mClient = client;
+    }
+
+    /**
+     * Queue a receipt for a message. Only call this after the message is
+     * saved.
+     * @param to the sender of the message
+     * @param xmppID the XMPP ID of the message
+     */
+    void queue(String to, String xmppID) {
+        Message received = new Message(to, Message.Type.chat);
+        received.addExtension(new DeliveryReceipt(xmppID));
+
+        synchronized (this) {
+            mBatch.add(received);
+            if (mBatch.size() < MAX_BATCH) {
+                if (mFuture == null)
+                    mFuture = mExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            ReceiptBatcher.this.flush();
+                        }
+                    }, MAX_DELAY, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        this.flush();
+    }
+
+    /** Send all queued receipts now, if connected. */
+    void flush() {
+        List<Packet> batch;
+        synchronized (this) {
+            if (mFuture != null) {
+                mFuture.cancel(false);
+                mFuture = null;
+            }
+            if (mBatch.isEmpty())
+                return;
+            if (!mClient.isConnected()) {
+                LOGGER.info("not connected, keeping "+mBatch.size()+" receipts");
+                return;
+            }
+            batch = mBatch;
+            mBatch = new ArrayList<>();
+        }
+        LOGGER.info("sending "+batch.size()+" receipts");
+        int sent = mClient.sendPackets(batch);
+        if (sent == batch.size())
+            return;
+
+        // connection lost meanwhile
+        synchronized (this) {
+            batch = batch.subList(sent, batch.size());
+            batch.addAll(mBatch);
+            mBatch = new ArrayList<>(batch);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Enumeration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kontalk.system.ControlCenter;
+import org.kontalk.system.KonConf;
+
+/**
+ * Reconnects automatically after the connection to the server was lost.
+ * Attempts are delayed with exponential backoff and random jitter, so that
+ * clients losing the connection at the same time do not reconnect at the same
+ * time. While no network interface is up, attempts are paused.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class ReconnectionManager {
+    private final static Logger LOGGER = Logger.getLogger(ReconnectionManager.class.getName());
+
+    /** Initial delay before an attempt in milliseconds, doubled each time. */
+    private final static long INITIAL_DELAY = 2 * 1000;
+    private final static long MAX_DELAY = 5 * 60 * 1000;
+    /** Interval for checking if the network is available again. */
+    private final static long NETWORK_CHECK_INTERVAL = 10 * 1000;
+
+    private final Client mClient;
+    private final ControlCenter mControl;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Reconnection");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private ScheduledFuture<?> mFuture = null;
+    /** Time the connection was lost, zero if not reconnecting. */
+    private long mLostTime = 0;
+    private long mDelay = INITIAL_DELAY;
+    private boolean mWaitingForNetwork = false;
+
+    // metrics
+    private int mAttempts = 0;
+    private int mReconnects = 0;
+    private long mLastLatency = -1;
+    private long mTotalLatency = 0;
+
+    ReconnectionManager(Client client, ControlCenter control) {
+        mClient = client;
+        mControl = control;
+    }
+
+    /**
+     * Schedule the next attempt after the connection was lost or an attempt
+     * failed.
+     * @return true if an attempt is scheduled, false if reconnecting is
+     * disabled
+     */
+    synchronized boolean connectionLost() {
+        if (!KonConf.getInstance().getBoolean(KonConf.NET_AUTO_RECONNECT))
+            return false;
+
+        if (mLostTime == 0) {
+            LOGGER.info("connection lost, reconnecting");
+            mLostTime = System.currentTimeMillis();
+            mDelay = INITIAL_DELAY;
+        }
+        this.schedule(jitter(mDelay));
+        mDelay = Math.min(mDelay * 2, MAX_DELAY);
+        return true;
+    }
+
+    /** The connection is established (again). */
+    synchronized void connected() {
+        if (mLostTime == 0)
+            return;
+        mLastLatency = System.currentTimeMillis() - mLostTime;
+        mTotalLatency += mLastLatency;
+        mReconnects++;
+        LOGGER.info("reconnected after "+mLastLatency+" ms; "+
+                "attempts: "+mAttempts+", reconnects: "+mReconnects);
+        mLostTime = 0;
+    }
+
+    /** Stop reconnecting, e.g. if the user connects or disconnects. */
+    synchronized void cancel() {
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+        mLostTime = 0;
+        mWaitingForNetwork = false;
+    }
+
+    /** Return true if the connection was lost and not established again. */
+    public synchronized boolean isReconnecting() {
+        return mLostTime != 0;
+    }
+
+    /** Total number of reconnection attempts. */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    /** Number of successful reconnections. */
+    public synchronized int getReconnects() {
+        return mReconnects;
+    }
+
+    /**
+     * Time from the loss of the connection to the last reconnection in
+     * milliseconds, -1 if there was none.
+     */
+    public synchronized long getLastLatency() {
+        return mLastLatency;
+    }
+
+    /**
+     * Average time to reconnect in milliseconds, -1 if there was no
+     * reconnection.
+     */
+    public synchronized long getAverageLatency() {
+        return mReconnects == 0 ? -1 : mTotalLatency / mReconnects;
+    }
+
+    private void schedule(long delay) {
+        LOGGER.info("next attempt in "+delay+" ms");
+        mControl.setStatus(ControlCenter.Status.RECONNECTING);
+        mFuture = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ReconnectionManager.this.attempt();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt() {
+        // connecting is done without lock, the client calls back
+        if (!this.prepareAttempt())
+            return;
+        mClient.reconnect();
+    }
+
+    /** Return true if a connection attempt should be started now. */
+    private synchronized boolean prepareAttempt() {
+        mFuture = null;
+        if (mLostTime == 0)
+            // cancelled
+            return false;
+
+        if (!isNetworkAvailable()) {
+            if (!mWaitingForNetwork)
+                LOGGER.info("network not available, waiting");
+            mWaitingForNetwork = true;
+            mFuture = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ReconnectionManager.this.attempt();
+                }
+            }, NETWORK_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+            return false;
+        }
+        if (mWaitingForNetwork) {
+            // all clients of the network are back now, spread the attempts
+            LOGGER.info("network available again");
+            mWaitingForNetwork = false;
+            mDelay = INITIAL_DELAY;
+            this.schedule(jitter(mDelay));
+            return false;
+        }
+
+        mAttempts++;
+        return true;
+    }
+
+    /** "Equal jitter": at least half of the delay. */
+    private static long jitter(long delay) {
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /** Return true if a network interface other than loopback is up. */
+    private static boolean isNetworkAvailable() {
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface ni = interfaces.nextElement();
+                if (ni.isUp() && !ni.isLoopback() && ni.getInetAddresses().hasMoreElements())
+                    return true;
+            }
+        } catch (SocketException ex) {
+            LOGGER.log(Level.WARNING, "can't check network interfaces", ex);
+            // try anyway
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+
+/**
+ * Retry policy for one HTTP transfer.
+ * Failures are classified as transient (worth a retry) or permanent. Between
+ * attempts the policy waits with exponential backoff and random jitter, so
+ * that clients interrupted at the same time do not retry at the same time. A
+ * delay requested by the server with Retry-After is respected.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+final class RetryPolicy {
+    private final static Logger LOGGER = Logger.getLogger(RetryPolicy.class.getName());
+
+    /** Number of attempts for one transfer. */
+    private final static int MAX_ATTEMPTS = 5;
+    /** Initial delay between attempts in milliseconds, doubled each time. */
+    private final static long INITIAL_DELAY = 1000;
+    private final static long MAX_DELAY = 30 * 1000;
+
+    private int mAttempt = 1;
+    private long mDelay = INITIAL_DELAY;
+
+    int getAttempt() {
+        return mAttempt;
+    }
+
+    /**
+     * Wait before the next attempt after a failure.
+     * @return true if the transfer should be attempted again, false if the
+     * failure is permanent, no attempts are left or the thread was
+     * interrupted
+     */
+    boolean retry(IOException failure) {
+        if (!isTransient(failure)) {
+            LOGGER.info("permanent failure, no retry");
+            return false;
+        }
+        if (mAttempt >= MAX_ATTEMPTS)
+            return false;
+
+        // "equal jitter": at least half of the backoff delay
+        long delay = mDelay / 2 + ThreadLocalRandom.current().nextLong(mDelay / 2 + 1);
+        if (failure instanceof ServerException)
+            delay = Math.max(delay, ((ServerException) failure).retryAfter);
+        try {
+            Thread.sleep(Math.min(delay, MAX_DELAY));
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "interrupted while waiting", ex);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        mAttempt++;
+        mDelay = Math.min(mDelay * 2, MAX_DELAY);
+        return true;
+    }
+
+    /**
+     * Return true if the response code means a failure that is worth a
+     * retry: a server error or a request that was rejected for now.
+     */
+    static boolean isTransient(int code) {
+        switch (code) {
+            case 408: // request timeout
+            case 429: // too many requests
+                return true;
+            case 501: // not implemented
+            case 505: // version not supported
+                return false;
+            default:
+                return code >= 500;
+        }
+    }
+
+    /**
+     * Return true if the failure is worth a retry. Connection problems are,
+     * invalid certificates and protocol violations of the server are not.
+     */
+    static boolean isTransient(IOException ex) {
+        if (ex instanceof ServerException)
+            return isTransient(((ServerException) ex).code);
+        if (ex instanceof SSLPeerUnverifiedException ||
+                ex instanceof ClientProtocolException)
+            return false;
+        if (ex instanceof SSLHandshakeException &&
+                ex.getCause() instanceof CertificateException)
+            return false;
+        return true;
+    }
+
+    /**
+     * An unsuccessful response of the server.
+     */
+    static final class ServerException extends IOException {
+        /** HTTP response code. */
+        final int code;
+        /** Delay requested by the server in milliseconds, zero if none. */
+        final long retryAfter;
+
+        ServerException(HttpResponse response) {
+            super("server error, response code: " + response.getStatusLine().getStatusCode());
+            this.code = response.getStatusLine().getStatusCode();
+            this.retryAfter = parseRetryAfter(response.getFirstHeader("Retry-After"));
+        }
+
+        /** Only the delay in seconds is supported, not the HTTP date. */
+        private static long parseRetryAfter(Header header) {
+            if (header == null)
+                return 0;
+            try {
+                return Math.max(Long.parseLong(header.getValue().trim()) * 1000, 0);
+            } catch (NumberFormatException ex) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.packet.RosterPacket;
+import org.jivesoftware.smack.rosterstore.DirectoryRosterStore;
+import org.jivesoftware.smack.rosterstore.RosterStore;
+import org.kontalk.Kontalk;
+
+/**
+ * Persistent roster of an account, for roster versioning (XEP-0237).
+ * With the version of the cached roster the server sends only the changes
+ * since the last login. Smack reports all entries of the cache as added on
+ * every login, this cache remembers which entries really changed.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+final class RosterCache implements RosterStore {
+    private final static Logger LOGGER = Logger.getLogger(RosterCache.class.getName());
+
+    private final RosterStore mStore;
+    /** Cached entries by JID, for comparing. */
+    private final Map<String, RosterPacket.Item> mEntries = new HashMap<>();
+    /** JIDs of entries added or changed since the last poll. */
+    private final Set<String> mChanged = new HashSet<>();
+
+    private RosterCache(RosterStore store) {
+        mStore = store;
+        for (RosterPacket.Item item : store.getEntries())
+            mEntries.put(item.getUser(), item);
+    }
+
+    /**
+     * Open the cache for an account on a server, create it if it does not
+     * exist.
+     */
+    static Optional<RosterCache> open(String network, String fingerprint) {
+        File dir = Paths.get(Kontalk.getConfigDir(), "roster", network, fingerprint).toFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOGGER.warning("can't create roster directory: "+dir);
+            return Optional.empty();
+        }
+        RosterStore store = DirectoryRosterStore.open(dir);
+        if (store == null) {
+            LOGGER.info("creating new roster cache");
+            store = DirectoryRosterStore.init(dir);
+        }
+        if (store == null) {
+            LOGGER.warning("can't initialize roster cache");
+            return Optional.empty();
+        }
+        return Optional.<RosterCache>of(new RosterCache(store));
+    }
+
+    /** Return and forget the JIDs of entries that changed. */
+    synchronized Set<String> pollChanged() {
+        Set<String> changed = new HashSet<>(mChanged);
+        mChanged.clear();
+        return changed;
+    }
+
+    @Override
+    public Collection<RosterPacket.Item> getEntries() {
+        return mStore.getEntries();
+    }
+
+    @Override
+    public RosterPacket.Item getEntry(String bareJid) {
+        return mStore.getEntry(bareJid);
+    }
+
+    @Override
+    public String getRosterVersion() {
+        return mStore.getRosterVersion();
+    }
+
+    /** A roster push or a changed entry of a roster delta. */
+    @Override
+    public synchronized boolean addEntry(RosterPacket.Item item, String version) {
+        this.update(item);
+        return mStore.addEntry(item, version);
+    }
+
+    /** The full roster was sent by the server. */
+    @Override
+    public synchronized boolean resetEntries(Collection<RosterPacket.Item> items, String version) {
+        Map<String, RosterPacket.Item> old = new HashMap<>(mEntries);
+        mEntries.clear();
+        for (RosterPacket.Item item : items) {
+            mEntries.put(item.getUser(), old.get(item.getUser()));
+            this.update(item);
+        }
+        return mStore.resetEntries(items, version);
+    }
+
+    @Override
+    public synchronized boolean removeEntry(String bareJid, String version) {
+        mEntries.remove(bareJid);
+        mChanged.remove(bareJid);
+        return mStore.removeEntry(bareJid, version);
+    }
+
+    private void update(RosterPacket.Item item) {
+        RosterPacket.Item old = mEntries.put(item.getUser(), item);
+        if (!item.equals(old))
+            mChanged.add(item.getUser());
+    }
+}
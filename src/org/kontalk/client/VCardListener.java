@@ -32,7 +32,6 @@ final class VCardListener implements PacketListener {
     @Override
     public void processPacket(Packet packet) {
         VCard4 p = (VCard4) packet;
-        LOGGER.info("got vcard: "+p.toXML());
 
         byte[] publicKey = p.getPGPKey();
 
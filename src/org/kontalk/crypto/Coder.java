@@ -19,6 +19,8 @@
 package org.kontalk.crypto;
 
 import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -27,7 +29,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.text.ParseException;
 import java.util.Base64;
@@ -41,7 +42,6 @@ import org.apache.commons.io.FilenameUtils;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.openpgp.PGPCompressedData;
 import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
-import org.bouncycastle.openpgp.PGPEncryptedData;
 import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
 import org.bouncycastle.openpgp.PGPEncryptedDataList;
 import org.bouncycastle.openpgp.PGPException;
@@ -58,13 +58,10 @@ import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureGenerator;
 import org.bouncycastle.openpgp.PGPSignatureList;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
-import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
-import org.bouncycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
-import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
-import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
-import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
 import org.jivesoftware.smack.packet.Message;
+import org.kontalk.system.AttachmentStore;
 import org.kontalk.system.Downloader;
+import org.kontalk.system.KonConf;
 import org.kontalk.misc.KonException;
 import org.kontalk.client.KonMessageListener;
 import org.kontalk.crypto.PGPUtils.PGPCoderKey;
@@ -133,6 +130,11 @@ public final class Coder {
 
     /** Buffer size for encryption. It should always be a power of 2. */
     private static final int BUFFER_SIZE = 1 << 8;
+    /** Buffer size for reading decrypted data. */
+    private static final int DECRYPT_BUFFER_SIZE = 1 << 13;
+
+    /** PGP operator implementation, see {@link CoderBackend}. */
+    private static CoderBackend BACKEND = CoderBackend.BC;
 
     private static class KeysResult {
         PersonalKey myKey = null;
@@ -140,13 +142,79 @@ public final class Coder {
         EnumSet<Coder.Error> errors = EnumSet.noneOf(Coder.Error.class);
     }
 
-    private static class DecryptionResult {
+    static class DecryptionResult {
         EnumSet<Coder.Error> errors = EnumSet.noneOf(Coder.Error.class);
+        /** All data decrypted (but maybe with errors). */
+        boolean decrypted = false;
         Optional<? extends ByteArrayOutputStream> decryptedStream = Optional.empty();
         Signing signing = Signing.UNKNOWN;
     }
 
-    private static class ParsingResult {
+    /**
+     * Result of an attachment decryption, saved to the message when
+     * committed. The decrypted data is kept in a temporary file until then.
+     */
+    public static final class AttachmentResult {
+        private final InMessage mMessage;
+        /** Name of the encrypted file. */
+        private final String mFileName;
+        private final Optional<EnumSet<Error>> mErrors;
+        private final Optional<Signing> mSigning;
+        private final Optional<File> mTempFile;
+
+        private AttachmentResult(InMessage message,
+                String fileName,
+                Optional<EnumSet<Error>> errors,
+                Optional<Signing> signing,
+                Optional<File> tempFile) {
+            mMessage = message;
+            mFileName = fileName;
+            mErrors = errors;
+            mSigning = signing;
+            mTempFile = tempFile;
+        }
+
+        /**
+         * Save the result to the message and the decrypted file to the
+         * attachment directory.
+         * @return true if the attachment was decrypted
+         */
+        public boolean commit() {
+            if (mErrors.isPresent())
+                mMessage.setAttachmentErrors(mErrors.get());
+            if (mSigning.isPresent())
+                mMessage.setAttachmentSigning(mSigning.get());
+            if (!mTempFile.isPresent())
+                return false;
+
+            File baseDir = Downloader.getInstance().getBaseDir();
+            String base = FilenameUtils.getBaseName(mFileName);
+            String ext = FilenameUtils.getExtension(mFileName);
+            File outFile;
+            try {
+                outFile = AttachmentStore.moveToUnique(mTempFile.get(),
+                        baseDir,
+                        base + "_dec." + ext);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "can't move decrypted file", ex);
+                this.discard();
+                return false;
+            }
+
+            // set new filename
+            mMessage.setDecryptedAttachment(outFile.getName());
+            LOGGER.info("attachment decryption successful");
+            return true;
+        }
+
+        /** Delete the decrypted file, nothing is saved. */
+        public void discard() {
+            if (mTempFile.isPresent())
+                mTempFile.get().delete();
+        }
+    }
+
+    static class ParsingResult {
         MessageContent content = null;
         EnumSet<Coder.Error> errors = EnumSet.noneOf(Coder.Error.class);
     }
@@ -156,6 +224,31 @@ public final class Coder {
         throw new AssertionError();
     }
 
+    /**
+     * Set the backend used for all following de-/encryption: as specified in
+     * the configuration or, if not specified, the fastest one.
+     */
+    public static void initBackend() {
+        String name = KonConf.getInstance().getString(KonConf.CRYPTO_BACKEND);
+        CoderBackend backend = null;
+        if (!name.isEmpty()) {
+            try {
+                backend = CoderBackend.valueOf(name);
+            } catch (IllegalArgumentException ex) {
+                LOGGER.warning("unknown crypto backend in configuration: "+name);
+            }
+        }
+        if (backend == null)
+            backend = CoderBackend.select();
+
+        setBackend(backend);
+    }
+
+    static void setBackend(CoderBackend backend) {
+        LOGGER.info("using crypto backend: "+backend);
+        BACKEND = backend;
+    }
+
     /**
      * Creates encrypted and signed message body. Errors that may occur are
      * saved to the message.
@@ -186,86 +279,63 @@ public final class Coder {
         CPIMMessage cpim = new CPIMMessage(from, to, new Date(), mime, text);
         byte[] plainText = cpim.toByteArray();
 
-        // setup data encryptor & generator
-        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-        encryptor.setWithIntegrityPacket(true);
-        encryptor.setSecureRandom(new SecureRandom());
-
-        // add public key recipients
-        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        //for (PGPPublicKey rcpt : mRecipients)
-        encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(keys.otherKey.encryptKey));
-
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ByteArrayInputStream in = new ByteArrayInputStream(plainText);
-        try { // catch all io and pgp exceptions
-
-            OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
-
-            // setup compressed data generator
-            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
-
-            // setup signature generator
-            PGPKeyPair encryptKeyPair = keys.myKey.getEncryptKeyPair();
-            int algo = encryptKeyPair.getPublicKey().getAlgorithm();
-            PGPSignatureGenerator sigGen = new PGPSignatureGenerator(
-                    new BcPGPContentSignerBuilder(algo, HashAlgorithmTags.SHA1));
-            sigGen.init(PGPSignature.BINARY_DOCUMENT, encryptKeyPair.getPrivateKey());
-
-            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-            spGen.setSignerUserID(false, keys.myKey.getUserId());
-            sigGen.setUnhashedSubpackets(spGen.generate());
-
-            sigGen.generateOnePassVersion(false).encode(compressedOut);
+        EnumSet<Coder.Error> errors = encryptAndSign(
+                new ByteArrayInputStream(plainText),
+                out,
+                keys.myKey,
+                keys.otherKey.encryptKey);
+        if (!errors.isEmpty()) {
+            message.setSecurityErrors(errors);
+            return Optional.empty();
+        }
 
-            // Initialize literal data generator
-            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-            OutputStream literalOut = literalGen.open(
-                compressedOut,
-                PGPLiteralData.BINARY,
-                "",
-                new Date(),
-                new byte[BUFFER_SIZE]);
+        LOGGER.info("encryption successful");
+        return Optional.of(out.toByteArray());
+    }
 
-            // read the "in" stream, compress, encrypt and write to the "out" stream
-            // this must be done if clear data is bigger than the buffer size
-            // but there are other ways to optimize...
-            byte[] buf = new byte[BUFFER_SIZE];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                literalOut.write(buf, 0, len);
-                try {
-                    sigGen.update(buf, 0, len);
-                } catch (SignatureException ex) {
-                        LOGGER.log(Level.WARNING, "can't read data for signature", ex);
-                        message.setSecurityErrors(EnumSet.of(Error.INVALID_SIGNATURE_DATA));
-                        return Optional.empty();
-                }
-            }
+    /**
+     * Encrypt and sign the attachment file of an outgoing message into a new
+     * file. The file is processed as stream, errors are saved to the message.
+     * @param message
+     * @param outFile the file the encrypted data is written to
+     * @return true if the attachment was encrypted
+     */
+    public static boolean processOutAttachment(OutMessage message, File outFile) {
+        Optional<Attachment> optAttachment = message.getContent().getAttachment();
+        if (!optAttachment.isPresent() ||
+                optAttachment.get().getCoderStatus().getEncryption() != Encryption.DECRYPTED) {
+            LOGGER.warning("attachment does not want to be encrypted");
+            return false;
+        }
 
-            in.close();
-            literalGen.close();
+        LOGGER.info("encrypting attachment...");
 
-            // generate the signature, compress, encrypt and write to the "out" stream
-            try {
-                sigGen.generate().encode(compressedOut);
-            } catch (SignatureException ex) {
-                LOGGER.log(Level.WARNING, "can't create signature", ex);
-                message.setSecurityErrors(EnumSet.of(Error.INVALID_SIGNATURE_DATA));
-                return Optional.empty();
-            }
-            compGen.close();
-            encGen.close();
+        // get keys
+        KeysResult keys = getKeys(message.getUser());
+        if (keys.myKey == null || keys.otherKey == null) {
+            message.setSecurityErrors(keys.errors);
+            return false;
+        }
 
-        } catch (IOException | PGPException ex) {
-            LOGGER.log(Level.WARNING, "can't encrypt message", ex);
-            message.setSecurityErrors(EnumSet.of(Error.UNKNOWN_ERROR));
-            return Optional.empty();
+        File baseDir = Downloader.getInstance().getBaseDir();
+        File inFile = new File(baseDir, optAttachment.get().getFileName());
+        EnumSet<Coder.Error> errors;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(inFile));
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile))) {
+            errors = encryptAndSign(in, out, keys.myKey, keys.otherKey.encryptKey);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't encrypt attachment file", ex);
+            errors = EnumSet.of(Error.UNKNOWN_ERROR);
+        }
+        if (!errors.isEmpty()) {
+            message.setSecurityErrors(errors);
+            outFile.delete();
+            return false;
         }
 
-        LOGGER.info("encryption successful");
-        return Optional.of(out.toByteArray());
+        LOGGER.info("attachment encryption successful");
+        return true;
     }
 
     /**
@@ -329,76 +399,114 @@ public final class Coder {
      * signing status of the message attachment and errors that may occur are
      * saved to the message.
      * @param message
+     * @return true if the attachment was decrypted
      */
-    public static void processAttachment(InMessage message) {
-        if (!message.getContent().getAttachment().isPresent()) {
-            LOGGER.warning("no attachment in message");
-            return;
-        }
-
-        Attachment attachment = message.getContent().getAttachment().get();
-
-        if (!attachment.getCoderStatus().isEncrypted()) {
-            LOGGER.warning("attachment not encrypted");
-            return;
-        }
+    public static boolean processAttachment(InMessage message) {
+        Optional<Attachment> optAttachment = getEncryptedAttachment(message);
+        if (!optAttachment.isPresent())
+            return false;
+        Attachment attachment = optAttachment.get();
 
         if (attachment.getFileName().isEmpty()) {
             LOGGER.warning("no filename in attachment");
-            return;
+            return false;
         }
 
         File baseDir = Downloader.getInstance().getBaseDir();
         File inFile = new File(baseDir, attachment.getFileName());
 
-        InputStream encryptedStream;
-        try {
-            encryptedStream = new FileInputStream(inFile);
+        try (InputStream encryptedStream = new BufferedInputStream(new FileInputStream(inFile))) {
+            return decryptToTempFile(message, encryptedStream, inFile.getName()).commit();
         } catch (FileNotFoundException ex) {
             LOGGER.log(Level.WARNING,
                     "attachment file not found: "+inFile.getAbsolutePath(),
                     ex);
-            return;
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't close attachment file", ex);
         }
+        return false;
+    }
+
+    /**
+     * Decrypt and verify an attachment while it is downloaded. Only the
+     * decrypted data is written, into a temporary file. Nothing is saved to
+     * the message until the result is committed, which must only be done
+     * after the download was verified.
+     * @param message
+     * @param encryptedStream stream of the encrypted file
+     * @param fileName name of the encrypted file
+     * @return the result to commit or discard, empty if the attachment is
+     * not encrypted
+     */
+    public static Optional<AttachmentResult> decryptAttachment(InMessage message,
+            InputStream encryptedStream,
+            String fileName) {
+        if (!getEncryptedAttachment(message).isPresent())
+            return Optional.empty();
+
+        return Optional.of(decryptToTempFile(message, encryptedStream, fileName));
+    }
+
+    private static Optional<Attachment> getEncryptedAttachment(InMessage message) {
+        Optional<Attachment> optAttachment = message.getContent().getAttachment();
+        if (!optAttachment.isPresent()) {
+            LOGGER.warning("no attachment in message");
+            return Optional.empty();
+        }
+
+        if (!optAttachment.get().getCoderStatus().isEncrypted()) {
+            LOGGER.warning("attachment not encrypted");
+            return Optional.empty();
+        }
+        return optAttachment;
+    }
 
+    private static AttachmentResult decryptToTempFile(InMessage message,
+            InputStream encryptedStream,
+            String fileName) {
         LOGGER.info("decrypting encrypted attachment...");
 
         // get keys
         KeysResult keys = getKeys(message.getUser());
         if (keys.myKey == null || keys.otherKey == null) {
-            message.setAttachmentErrors(keys.errors);
-            return;
+            return new AttachmentResult(message, fileName,
+                    Optional.of(keys.errors),
+                    Optional.<Signing>empty(),
+                    Optional.<File>empty());
         }
 
-        // decrypt
-        DecryptionResult decResult = decryptAndVerify(encryptedStream, keys.myKey, keys.otherKey.encryptKey);
-        message.setAttachmentErrors(keys.errors);
-        message.setAttachmentSigning(decResult.signing);
+        // decrypt directly into file
+        File baseDir = Downloader.getInstance().getBaseDir();
+        File tempFile = null;
+        DecryptionResult decResult;
+        try {
+            tempFile = File.createTempFile("decrypt", ".tmp", baseDir);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+                decResult = decryptAndVerify(encryptedStream,
+                        out,
+                        keys.myKey,
+                        keys.otherKey.encryptKey);
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't write decrypted file", ex);
+            if (tempFile != null)
+                tempFile.delete();
+            return new AttachmentResult(message, fileName,
+                    Optional.<EnumSet<Error>>empty(),
+                    Optional.<Signing>empty(),
+                    Optional.<File>empty());
+        }
 
         // check for errors
-        if (!decResult.decryptedStream.isPresent()) {
+        if (!decResult.decrypted) {
             LOGGER.info("attachment decryption failed");
-            return;
-        }
-
-        // save encrypted data
-        String base = FilenameUtils.getBaseName(inFile.getName());
-        String ext = FilenameUtils.getExtension(inFile.getName());
-        File outFile = new File(baseDir, base + "_dec." + ext);
-        if (outFile.exists()) {
-            LOGGER.warning("encrypted file already exists: "+outFile.getAbsolutePath());
-            return;
+            tempFile.delete();
+            tempFile = null;
         }
-        try (FileOutputStream out = new FileOutputStream(outFile)){
-            out.write(decResult.decryptedStream.get().toByteArray());
-        } catch (IOException ex) {
-            LOGGER.log(Level.WARNING, "can't write encrypted file", ex);
-            return;
-        }
-
-        // set new filename
-        message.setDecryptedAttachment(outFile.getName());
-        LOGGER.info("attachment decryption successful");
+        return new AttachmentResult(message, fileName,
+                Optional.of(decResult.errors),
+                Optional.of(decResult.signing),
+                Optional.ofNullable(tempFile));
     }
 
     private static KeysResult getKeys(User user) {
@@ -431,7 +539,108 @@ public final class Coder {
         return result;
     }
 
-    private static DecryptionResult decryptAndVerify(InputStream encryptedStream,
+    /**
+     * Compress, sign and encrypt data for one receiver.
+     * @return errors that occurred; empty on success
+     */
+    static EnumSet<Coder.Error> encryptAndSign(InputStream in,
+            OutputStream out,
+            PersonalKey myKey,
+            PGPPublicKey receiverKey) {
+        // setup data encryptor & generator
+        CoderBackend backend = BACKEND;
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(
+                backend.dataEncryptor(CoderBackend.SYMMETRIC_ALGORITHM));
+
+        // add public key recipients
+        //for (PGPPublicKey rcpt : mRecipients)
+        encGen.addMethod(backend.keyEncryption(receiverKey));
+
+        try { // catch all io and pgp exceptions
+
+            OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
+
+            // setup compressed data generator
+            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
+            OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+
+            // setup signature generator
+            PGPKeyPair encryptKeyPair = myKey.getEncryptKeyPair();
+            int algo = encryptKeyPair.getPublicKey().getAlgorithm();
+            PGPSignatureGenerator sigGen = new PGPSignatureGenerator(
+                    backend.contentSigner(algo, HashAlgorithmTags.SHA1));
+            sigGen.init(PGPSignature.BINARY_DOCUMENT, encryptKeyPair.getPrivateKey());
+
+            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+            spGen.setSignerUserID(false, myKey.getUserId());
+            sigGen.setUnhashedSubpackets(spGen.generate());
+
+            sigGen.generateOnePassVersion(false).encode(compressedOut);
+
+            // Initialize literal data generator
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            OutputStream literalOut = literalGen.open(
+                compressedOut,
+                PGPLiteralData.BINARY,
+                "",
+                new Date(),
+                new byte[BUFFER_SIZE]);
+
+            // read the "in" stream, compress, encrypt and write to the "out" stream
+            // this must be done if clear data is bigger than the buffer size
+            // but there are other ways to optimize...
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                literalOut.write(buf, 0, len);
+                try {
+                    sigGen.update(buf, 0, len);
+                } catch (SignatureException ex) {
+                        LOGGER.log(Level.WARNING, "can't read data for signature", ex);
+                        return EnumSet.of(Error.INVALID_SIGNATURE_DATA);
+                }
+            }
+
+            in.close();
+            literalGen.close();
+
+            // generate the signature, compress, encrypt and write to the "out" stream
+            try {
+                sigGen.generate().encode(compressedOut);
+            } catch (SignatureException ex) {
+                LOGGER.log(Level.WARNING, "can't create signature", ex);
+                return EnumSet.of(Error.INVALID_SIGNATURE_DATA);
+            }
+            compGen.close();
+            encGen.close();
+
+        } catch (IOException | PGPException ex) {
+            LOGGER.log(Level.WARNING, "can't encrypt message", ex);
+            return EnumSet.of(Error.UNKNOWN_ERROR);
+        }
+
+        return EnumSet.noneOf(Coder.Error.class);
+    }
+
+    static DecryptionResult decryptAndVerify(InputStream encryptedStream,
+            PersonalKey myKey,
+            PGPPublicKey senderKey) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DecryptionResult result = decryptAndVerify(encryptedStream,
+                outputStream,
+                myKey,
+                senderKey);
+        if (result.decrypted)
+            result.decryptedStream = Optional.of(outputStream);
+        return result;
+    }
+
+    /**
+     * Decrypt and verify data, the decrypted data is written to the output
+     * stream while reading.
+     */
+    static DecryptionResult decryptAndVerify(InputStream encryptedStream,
+            OutputStream outputStream,
             PersonalKey myKey,
             PGPPublicKey senderKey) {
         // note: the signature is inside the encrypted data
@@ -440,8 +649,6 @@ public final class Coder {
 
         PGPObjectFactory pgpFactory = new PGPObjectFactory(encryptedStream);
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
         try { // catch all IO and PGP exceptions
 
             // the first object might be a PGP marker packet
@@ -476,7 +683,8 @@ public final class Coder {
                 return result;
             }
 
-            InputStream clear = pbe.getDataStream(new BcPublicKeyDataDecryptorFactory(sKey));
+            CoderBackend backend = BACKEND;
+            InputStream clear = pbe.getDataStream(backend.dataDecryptor(sKey));
 
             PGPObjectFactory plainFactory = new PGPObjectFactory(clear);
 
@@ -507,7 +715,7 @@ public final class Coder {
                     result.errors.add(Error.INVALID_SIGNATURE_DATA);
                 } else {
                     ops = signatureList.get(0);
-                    ops.init(new BcPGPContentVerifierBuilderProvider(), senderKey);
+                    ops.init(backend.contentVerifier(), senderKey);
                 }
                 object = pgpFact.nextObject(); // nullable
             } else {
@@ -523,18 +731,19 @@ public final class Coder {
 
             PGPLiteralData ld = (PGPLiteralData) object;
             InputStream unc = ld.getInputStream();
-            int ch;
-            while ((ch = unc.read()) >= 0) {
-                outputStream.write(ch);
+            byte[] buf = new byte[DECRYPT_BUFFER_SIZE];
+            int len;
+            while ((len = unc.read(buf)) > 0) {
+                outputStream.write(buf, 0, len);
                 if (ops != null)
                     try {
-                        ops.update((byte) ch);
+                        ops.update(buf, 0, len);
                     } catch (SignatureException ex) {
                         LOGGER.log(Level.WARNING, "can't read signature", ex);
                 }
             }
 
-            result.decryptedStream = Optional.of(outputStream);
+            result.decrypted = true;
 
             if (ops != null) {
                 result = verifySignature(result, pgpFact, ops);
@@ -596,7 +805,7 @@ public final class Coder {
     /**
      * Parse and verify CPIM ( https://tools.ietf.org/html/rfc3860 ).
      */
-    private static ParsingResult parseCPIM(
+    static ParsingResult parseCPIM(
             String text,
             String myUid,
             String senderKeyUID) {
@@ -644,7 +853,6 @@ public final class Coder {
                 LOGGER.log(Level.WARNING, "can't parse XMPP XML string", ex);
                 return null;
             }
-            LOGGER.info("decrypted message content: "+m.toXML());
             decryptedContent = KonMessageListener.parseMessageContent(m);
         } else {
             LOGGER.info("CPIM body MIME type: "+mime);
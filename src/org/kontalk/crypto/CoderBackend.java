@@ -0,0 +1,222 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.output.NullOutputStream;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.PGPDataEncryptor;
+import org.bouncycastle.openpgp.operator.PGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+
+/**
+ * Implementations of the PGP operators used by {@link Coder}.
+ * Both produce the same OpenPGP wire format. The Bouncy Castle lightweight API
+ * runs completely in Java, the JCA/JCE API uses the installed security
+ * providers for symmetric ciphers (with hardware accelerated AES if the JVM
+ * supports it).
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public enum CoderBackend {
+    /** Bouncy Castle lightweight API. */
+    BC {
+        @Override
+        PGPDataEncryptorBuilder dataEncryptor(int algorithm) {
+            return new BcPGPDataEncryptorBuilder(algorithm)
+                    .setWithIntegrityPacket(true)
+                    .setSecureRandom(RANDOM);
+        }
+
+        @Override
+        PGPKeyEncryptionMethodGenerator keyEncryption(PGPPublicKey key) {
+            return new BcPublicKeyKeyEncryptionMethodGenerator(key)
+                    .setSecureRandom(RANDOM);
+        }
+
+        @Override
+        PublicKeyDataDecryptorFactory dataDecryptor(PGPPrivateKey key) {
+            return new BcPublicKeyDataDecryptorFactory(key);
+        }
+
+        @Override
+        PGPContentSignerBuilder contentSigner(int keyAlgorithm, int hashAlgorithm) {
+            return new BcPGPContentSignerBuilder(keyAlgorithm, hashAlgorithm);
+        }
+
+        @Override
+        PGPContentVerifierBuilderProvider contentVerifier() {
+            return new BcPGPContentVerifierBuilderProvider();
+        }
+    },
+    /** JCA/JCE API with the installed (and usually fastest) cipher provider. */
+    JCA {
+        @Override
+        PGPDataEncryptorBuilder dataEncryptor(int algorithm) {
+            return new JcePGPDataEncryptorBuilder(algorithm)
+                    .setProvider(getContentProvider())
+                    .setWithIntegrityPacket(true)
+                    .setSecureRandom(RANDOM);
+        }
+
+        @Override
+        PGPKeyEncryptionMethodGenerator keyEncryption(PGPPublicKey key) {
+            return new JcePublicKeyKeyEncryptionMethodGenerator(key)
+                    .setProvider(PGPUtils.PROVIDER)
+                    .setSecureRandom(RANDOM);
+        }
+
+        @Override
+        PublicKeyDataDecryptorFactory dataDecryptor(PGPPrivateKey key) {
+            return new JcePublicKeyDataDecryptorFactoryBuilder()
+                    .setProvider(PGPUtils.PROVIDER)
+                    .setContentProvider(getContentProvider())
+                    .build(key);
+        }
+
+        @Override
+        PGPContentSignerBuilder contentSigner(int keyAlgorithm, int hashAlgorithm) {
+            return new JcaPGPContentSignerBuilder(keyAlgorithm, hashAlgorithm)
+                    .setProvider(PGPUtils.PROVIDER)
+                    .setSecureRandom(RANDOM);
+        }
+
+        @Override
+        PGPContentVerifierBuilderProvider contentVerifier() {
+            return new JcaPGPContentVerifierBuilderProvider()
+                    .setProvider(PGPUtils.PROVIDER);
+        }
+    };
+
+    private final static Logger LOGGER = Logger.getLogger(CoderBackend.class.getName());
+
+    private final static SecureRandom RANDOM = new SecureRandom();
+
+    /** Symmetric algorithm used for all encryption (and the benchmark). */
+    final static int SYMMETRIC_ALGORITHM = PGPEncryptedData.AES_192;
+
+    /** Amount of data encrypted per round during the benchmark. */
+    private final static int BENCHMARK_SIZE = 1 << 20;
+    /** Number of measured benchmark rounds; one extra round for warm up. */
+    private final static int BENCHMARK_ROUNDS = 3;
+
+    private static Provider CONTENT_PROVIDER = null;
+
+    abstract PGPDataEncryptorBuilder dataEncryptor(int algorithm);
+
+    abstract PGPKeyEncryptionMethodGenerator keyEncryption(PGPPublicKey key);
+
+    abstract PublicKeyDataDecryptorFactory dataDecryptor(PGPPrivateKey key);
+
+    abstract PGPContentSignerBuilder contentSigner(int keyAlgorithm, int hashAlgorithm);
+
+    abstract PGPContentVerifierBuilderProvider contentVerifier();
+
+    /**
+     * Measure the symmetric encryption throughput of this backend.
+     * @return the time needed in nanoseconds
+     */
+    private long benchmark(byte[] key, byte[] data) throws PGPException, IOException {
+        long start = 0;
+        for (int i = 0; i <= BENCHMARK_ROUNDS; i++) {
+            // first round is only for warm up
+            if (i == 1)
+                start = System.nanoTime();
+            PGPDataEncryptor encryptor = this.dataEncryptor(SYMMETRIC_ALGORITHM).build(key);
+            try (OutputStream out = encryptor.getOutputStream(new NullOutputStream())) {
+                out.write(data);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Select the fastest usable backend with a short self-benchmark.
+     */
+    public static CoderBackend select() {
+        byte[] key = new byte[24];
+        RANDOM.nextBytes(key);
+        byte[] data = new byte[BENCHMARK_SIZE];
+
+        CoderBackend fastest = BC;
+        long fastestTime = Long.MAX_VALUE;
+        for (CoderBackend backend : CoderBackend.values()) {
+            long time;
+            try {
+                time = backend.benchmark(key, data);
+            } catch (PGPException | IOException | RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "crypto backend not usable: "+backend, ex);
+                continue;
+            }
+            LOGGER.info("crypto backend "+backend+": "
+                    + (time / 1000000) + " ms for "
+                    + BENCHMARK_ROUNDS * (BENCHMARK_SIZE >> 20) + " MB");
+            if (time < fastestTime) {
+                fastest = backend;
+                fastestTime = time;
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * The provider for symmetric ciphers: the first installed provider
+     * supporting AES that is not Bouncy Castle (the JVM built-in provider
+     * is using AES-NI instructions).
+     */
+    private static synchronized Provider getContentProvider() {
+        if (CONTENT_PROVIDER == null) {
+            Provider[] providers = Security.getProviders("Cipher.AES");
+            if (providers != null) {
+                for (Provider p : providers) {
+                    if (!p.getName().equals(PGPUtils.PROVIDER)) {
+                        CONTENT_PROVIDER = p;
+                        break;
+                    }
+                }
+            }
+            if (CONTENT_PROVIDER == null)
+                CONTENT_PROVIDER = Security.getProvider(PGPUtils.PROVIDER);
+            LOGGER.info("symmetric cipher provider: "+CONTENT_PROVIDER.getName());
+        }
+        return CONTENT_PROVIDER;
+    }
+}
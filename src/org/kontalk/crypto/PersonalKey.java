@@ -52,13 +52,15 @@ public final class PersonalKey {
     private final PGPDecryptedKeyPairRing mPair;
     /** X.509 bridge certificate. */
     private X509Certificate mBridgeCert;
+    /** Private key for the bridge certificate, converted on first use. */
+    private PrivateKey mBridgeKey = null;
 
     private PersonalKey(PGPDecryptedKeyPairRing keyPair, X509Certificate bridgeCert) {
         mPair = keyPair;
         mBridgeCert = bridgeCert;
     }
 
-    private PersonalKey(PGPKeyPair signKp, PGPKeyPair encryptKp, X509Certificate bridgeCert) {
+    PersonalKey(PGPKeyPair signKp, PGPKeyPair encryptKp, X509Certificate bridgeCert) {
         this(new PGPDecryptedKeyPairRing(signKp, encryptKp), bridgeCert);
     }
 
@@ -74,8 +76,10 @@ public final class PersonalKey {
         return mBridgeCert;
     }
 
-    public PrivateKey getBridgePrivateKey() throws PGPException {
-    	return PGPUtils.convertPrivateKey(mPair.signKey.getPrivateKey());
+    public synchronized PrivateKey getBridgePrivateKey() throws PGPException {
+        if (mBridgeKey == null)
+            mBridgeKey = PGPUtils.convertPrivateKey(mPair.signKey.getPrivateKey());
+        return mBridgeKey;
     }
 
     public byte[] getEncodedPublicKeyRing() throws IOException {
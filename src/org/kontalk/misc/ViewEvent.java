@@ -19,6 +19,7 @@
 package org.kontalk.misc;
 
 import org.kontalk.model.KonMessage;
+import org.kontalk.model.User;
 
 /**
  * Events passed from controller to view.
@@ -56,4 +57,17 @@ public abstract class ViewEvent {
             this.message = message;
         }
     }
+
+    /** Progress of decrypting messages after the key of a user arrived. */
+    public static class DecryptionProgress extends ViewEvent {
+        public final User user;
+        public final int done;
+        public final int total;
+
+        public DecryptionProgress(User user, int done, int total) {
+            this.user = user;
+            this.done = done;
+            this.total = total;
+        }
+    }
 }
@@ -19,8 +19,6 @@
 package org.kontalk.model;
 
 import java.util.EnumSet;
-import java.util.Optional;
-import java.util.logging.Logger;
 import org.kontalk.crypto.Coder;
 import org.kontalk.model.MessageContent.Attachment;
 
@@ -29,7 +27,6 @@ import org.kontalk.model.MessageContent.Attachment;
  * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
  */
 public final class InMessage extends KonMessage {
-    private final static Logger LOGGER = Logger.getLogger(KonMessage.class.getName());
 
     /**
      * Create a new incoming message from builder.
@@ -40,6 +37,12 @@ public final class InMessage extends KonMessage {
         super(builder);
     }
 
+    @Override
+    public void setSecurityErrors(EnumSet<Coder.Error> errors) {
+        super.setSecurityErrors(errors);
+        MessageList.getInstance().updateKeyMissing(this);
+    }
+
     public void setSigning(Coder.Signing signing) {
         mCoderStatus.setSigning(signing);
         this.save();
@@ -49,6 +52,7 @@ public final class InMessage extends KonMessage {
         mContent.setDecryptedContent(decryptedContent);
         mCoderStatus.setDecrypted();
         this.save();
+        MessageList.getInstance().updateKeyMissing(this);
         this.changed();
     }
 
@@ -64,6 +68,15 @@ public final class InMessage extends KonMessage {
             this.changed();
      }
 
+    public void setAttachmentEncryptedFileName(String fileName) {
+        Attachment attachment = this.getAttachment();
+        if (attachment == null)
+            return;
+
+        attachment.setEncryptedFileName(fileName);
+        this.save();
+    }
+
     public void setAttachmentErrors(EnumSet<Coder.Error> errors) {
         Attachment attachment = this.getAttachment();
         if (attachment == null)
@@ -82,14 +95,17 @@ public final class InMessage extends KonMessage {
         this.save();
     }
 
-    public void setAttachmentDownloadProgress(int p) {
+    /**
+     * Set the download progress of the attachment; the caller must limit the
+     * number of calls, the view is updated every time.
+     */
+    public void setAttachmentDownloadProgress(int p, long rate, long eta) {
         Attachment attachment = this.getAttachment();
         if (attachment == null)
             return;
 
-        attachment.setDownloadProgress(p);
-        // TODO
-        //this.changed();
+        attachment.setTransferProgress(p, rate, eta);
+        this.changed();
     }
 
     public void setDecryptedAttachment(String filename) {
@@ -102,15 +118,6 @@ public final class InMessage extends KonMessage {
         this.changed();
     }
 
-    private Attachment getAttachment() {
-        Optional<Attachment> optAttachment = this.getContent().getAttachment();
-        if (!optAttachment.isPresent()) {
-            LOGGER.warning("no attachment!?");
-            return null;
-        }
-        return optAttachment.get();
-    }
-
     public static class Builder extends KonMessage.Builder {
 
         public Builder(KonThread thread, User user) {
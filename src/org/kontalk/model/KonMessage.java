@@ -26,10 +26,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Observable;
+import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kontalk.system.Database;
 import org.kontalk.crypto.Coder;
+import org.kontalk.model.MessageContent.Attachment;
 
 /**
  * Base class for incoming and outgoing XMMP messages.
@@ -193,6 +195,24 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
         this.save();
     }
 
+    public void setAttachmentHash(String hash) {
+        Attachment attachment = this.getAttachment();
+        if (attachment == null)
+            return;
+
+        attachment.setHash(hash);
+        this.save();
+    }
+
+    protected Attachment getAttachment() {
+        Optional<Attachment> optAttachment = this.getContent().getAttachment();
+        if (!optAttachment.isPresent()) {
+            LOGGER.warning("no attachment!?");
+            return null;
+        }
+        return optAttachment.get();
+    }
+
     /**
      * Return if two messages are logically equal.
      * Inconsistent with "natural ordering"!
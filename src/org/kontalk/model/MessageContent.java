@@ -18,6 +18,7 @@
 
 package org.kontalk.model;
 
+import java.nio.file.Path;
 import java.util.EnumSet;
 import java.util.Map;
 import java.util.Optional;
@@ -168,24 +169,35 @@ public class MessageContent {
     }
 
     public static class Attachment {
-        // URL to file, empty string by default
-        private final String mURL;
+        // URL to file, empty string by default or if not uploaded yet
+        private String mURL;
         // MIME of file, empty string by default
         private final String mMimeType;
         // size of (decrypted) file, -1 by default
         private final long mLength;
         // file name of downloaded and encrypted file, empty string by default
         private String mFileName;
+        // file name of the kept encrypted file after decryption, empty string
+        // by default
+        private String mEncryptedFileName;
+        // SHA-256 of (decrypted) file content in store, empty string by default
+        private String mHash;
         // coder status of file encryption
         private final CoderStatus mCoderStatus;
-        // progress downloaded of (encrypted) file in percent
-        // no download/default: -1; unknown size: -2; download abort: -3
-        private int mDownloadProgress = -1;
+        // progress downloaded or uploaded of (encrypted) file in percent
+        // no transfer/default: -1; unknown size: -2; transfer abort: -3
+        private int mTransferProgress = -1;
+        // transfer rate in bytes per second and estimated seconds left
+        // while transferring, -1 if unknown
+        private long mTransferRate = -1;
+        private long mTransferETA = -1;
 
         private final static String JSON_URL = "url";
         private final static String JSON_MIME_TYPE = "mime_type";
         private final static String JSON_LENGTH = "length";
         private final static String JSON_FILE_NAME = "file_name";
+        private final static String JSON_ENC_FILE_NAME = "encrypted_file_name";
+        private final static String JSON_HASH = "hash";
         private final static String JSON_ENCRYPTION = "encryption";
         private final static String JSON_SIGNING = "signing";
         private final static String JSON_CODER_ERRORS = "coder_errors";
@@ -200,6 +212,8 @@ public class MessageContent {
                     mimeType,
                     length,
                     "",
+                    "",
+                    "",
                     new CoderStatus(
                         encrypted ? Coder.Encryption.ENCRYPTED : Coder.Encryption.NOT,
                         encrypted ? Coder.Signing.UNKNOWN : Coder.Signing.NOT,
@@ -208,16 +222,37 @@ public class MessageContent {
             );
         }
 
+        // used for outgoing attachments, file must be in attachment directory
+        public Attachment(Path path, String mimeType, boolean encrypted) {
+            this(
+                    "",
+                    mimeType,
+                    path.toFile().length(),
+                    path.getFileName().toString(),
+                    "",
+                    "",
+                    new CoderStatus(
+                        encrypted ? Coder.Encryption.DECRYPTED : Coder.Encryption.NOT,
+                        encrypted ? Coder.Signing.SIGNED : Coder.Signing.NOT,
+                        EnumSet.noneOf(Coder.Error.class)
+                    )
+            );
+        }
+
         // used when loading from database.
         private Attachment(String url,
                 String mimeType,
                 long length,
                 String fileName,
+                String encryptedFileName,
+                String hash,
                 CoderStatus coderStatus)  {
             mURL = url;
             mMimeType = mimeType;
             mLength = length;
             mFileName = fileName;
+            mEncryptedFileName = encryptedFileName;
+            mHash = hash;
             mCoderStatus = coderStatus;
         }
 
@@ -225,10 +260,19 @@ public class MessageContent {
             return mURL;
         }
 
+        void setURL(String url) {
+            mURL = url;
+        }
+
         public String getMimeType() {
             return mMimeType;
         }
 
+        /** Return size of (decrypted) file or -1 if unknown. */
+        public long getLength() {
+            return mLength;
+        }
+
        /**
         * Return name of file or empty string if file wasn't downloaded yet.
         */
@@ -240,6 +284,30 @@ public class MessageContent {
             mFileName = fileName;
         }
 
+        /**
+         * Return name of the encrypted file if it was kept after decryption,
+         * else empty string.
+         */
+        public String getEncryptedFileName() {
+            return mEncryptedFileName;
+        }
+
+        void setEncryptedFileName(String fileName) {
+            mEncryptedFileName = fileName;
+        }
+
+        /**
+         * Return hash of file content in the attachment store or empty string
+         * if not stored.
+         */
+        public String getHash() {
+            return mHash;
+        }
+
+        void setHash(String hash) {
+            mHash = hash;
+        }
+
         public void setDecryptedFilename(String fileName) {
             mCoderStatus.setDecrypted();
             mFileName = fileName;
@@ -249,8 +317,22 @@ public class MessageContent {
             return mCoderStatus;
         }
 
-        void setDownloadProgress(int p) {
-            mDownloadProgress = p;
+        public int getTransferProgress() {
+            return mTransferProgress;
+        }
+
+        public long getTransferRate() {
+            return mTransferRate;
+        }
+
+        public long getTransferETA() {
+            return mTransferETA;
+        }
+
+        void setTransferProgress(int p, long rate, long eta) {
+            mTransferProgress = p;
+            mTransferRate = rate;
+            mTransferETA = eta;
         }
 
         @Override
@@ -267,6 +349,8 @@ public class MessageContent {
             json.put(JSON_MIME_TYPE, mMimeType);
             json.put(JSON_LENGTH, mLength);
             json.put(JSON_FILE_NAME, mFileName);
+            json.put(JSON_ENC_FILE_NAME, mEncryptedFileName);
+            json.put(JSON_HASH, mHash);
             json.put(JSON_ENCRYPTION, mCoderStatus.getEncryption().ordinal());
             json.put(JSON_SIGNING, mCoderStatus.getSigning().ordinal());
             int errs = EncodingUtils.enumSetToInt(mCoderStatus.getErrors());
@@ -290,6 +374,12 @@ public class MessageContent {
                 String fileName = (String) map.get(JSON_FILE_NAME);
                 if (fileName == null) fileName = "";
 
+                String encFileName = (String) map.get(JSON_ENC_FILE_NAME);
+                if (encFileName == null) encFileName = "";
+
+                String hash = (String) map.get(JSON_HASH);
+                if (hash == null) hash = "";
+
                 Number enc = (Number) map.get(JSON_ENCRYPTION);
                 Coder.Encryption encryption = Coder.Encryption.values()[enc.intValue()];
 
@@ -304,6 +394,8 @@ public class MessageContent {
                         mimeType,
                         length,
                         fileName,
+                        encFileName,
+                        hash,
                         new CoderStatus(encryption, signing, errors));
                 return Optional.of(a);
             } catch (NullPointerException | ClassCastException ex) {
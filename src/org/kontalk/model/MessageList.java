@@ -52,6 +52,10 @@ public final class MessageList extends Observable {
     // note: map and lists are not thread-safe on modification / iteration!
     private final HashMap<String, List<KonMessage>> mMap = new HashMap<>();
 
+    // incoming messages that could not be decrypted because the public key of
+    // the sender was missing, indexed by sender
+    private final HashMap<User, Set<InMessage>> mKeyMissingMap = new HashMap<>();
+
     private MessageList() {
     }
 
@@ -118,6 +122,8 @@ public final class MessageList extends Observable {
 
                 optThread.get().add(newMessage);
                 this.addMessage(newMessage);
+                if (newMessage instanceof InMessage)
+                    this.updateKeyMissing((InMessage) newMessage);
             }
             resultSet.close();
         } catch (SQLException ex) {
@@ -169,6 +175,60 @@ public final class MessageList extends Observable {
         return s;
     }
 
+    /**
+     * Get all incoming messages with an attachment that is not downloaded.
+     */
+    public synchronized List<InMessage> getMissingAttachmentMessages() {
+        List<InMessage> l = new ArrayList<>();
+        for (List<KonMessage> ml : mMap.values()) {
+            for (KonMessage m : ml) {
+                if (!(m instanceof InMessage))
+                    continue;
+                Optional<MessageContent.Attachment> optAttachment =
+                        m.getContent().getAttachment();
+                if (optAttachment.isPresent() &&
+                        optAttachment.get().getFileName().isEmpty())
+                    l.add((InMessage) m);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Update the index of messages waiting for the public key of their sender.
+     * Called whenever the coder status of an incoming message changed.
+     */
+    synchronized void updateKeyMissing(InMessage message) {
+        User user = message.getUser();
+        CoderStatus status = message.getCoderStatus();
+        boolean keyMissing = status.isEncrypted() &&
+                status.hasSecurityError(Coder.Error.KEY_UNAVAILABLE);
+        Set<InMessage> s = mKeyMissingMap.get(user);
+        if (keyMissing) {
+            if (s == null) {
+                s = new HashSet<>();
+                mKeyMissingMap.put(user, s);
+            }
+            s.add(message);
+        } else if (s != null) {
+            s.remove(message);
+            if (s.isEmpty())
+                mKeyMissingMap.remove(user);
+        }
+    }
+
+    /**
+     * Remove and return all incoming messages of a user that could not be
+     * decrypted because the public key of the user was missing.
+     */
+    public synchronized SortedSet<InMessage> pollKeyMissingMessages(User user) {
+        SortedSet<InMessage> s = new TreeSet<>();
+        Set<InMessage> missing = mKeyMissingMap.remove(user);
+        if (missing != null)
+            s.addAll(missing);
+        return s;
+    }
+
     /**
      * Get the newest (ie last received) outgoing message that has not the status
      * "RECEIVED".
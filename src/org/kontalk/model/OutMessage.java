@@ -23,6 +23,7 @@ import java.util.EnumSet;
 import java.util.logging.Logger;
 import org.jivesoftware.smack.util.StringUtils;
 import org.kontalk.crypto.Coder;
+import org.kontalk.model.MessageContent.Attachment;
 
 /**
  * Model for a XMPP message that we are sending.
@@ -36,7 +37,9 @@ public final class OutMessage extends KonMessage {
     }
 
     public void setStatus(Status status) {
-        if (status == Status.SENT && mReceiptStatus != Status.PENDING)
+        // an error can be a missing acknowledgement that arrives late
+        if (status == Status.SENT &&
+                mReceiptStatus != Status.PENDING && mReceiptStatus != Status.ERROR)
             LOGGER.warning("unexpected new status of sent message: "+status);
         if (status == Status.RECEIVED && mReceiptStatus != Status.SENT)
             LOGGER.warning("unexpected new status of received message: "+status);
@@ -45,6 +48,29 @@ public final class OutMessage extends KonMessage {
         this.changed();
     }
 
+    public void setAttachmentURL(String url) {
+        Attachment attachment = this.getAttachment();
+        if (attachment == null)
+            return;
+
+        attachment.setURL(url);
+        this.save();
+        this.changed();
+    }
+
+    /**
+     * Set the upload progress of the attachment; the caller must limit the
+     * number of calls, the view is updated every time.
+     */
+    public void setAttachmentUploadProgress(int p, long rate, long eta) {
+        Attachment attachment = this.getAttachment();
+        if (attachment == null)
+            return;
+
+        attachment.setTransferProgress(p, rate, eta);
+        this.changed();
+    }
+
 public static class Builder extends KonMessage.Builder {
 
         public Builder(KonThread thread, User user, boolean encrypted) {
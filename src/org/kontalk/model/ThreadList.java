@@ -20,14 +20,18 @@ package org.kontalk.model;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Observable;
 import java.util.Optional;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.kontalk.model.MessageContent.Attachment;
+import org.kontalk.system.AttachmentStore;
 import org.kontalk.system.Database;
 
 /**
@@ -100,8 +104,9 @@ public final class ThreadList extends Observable {
         this.changed();
     }
 
-    public Collection<KonThread> getThreads() {
-        return mMap.values();
+    /** Return a copy of all threads, safe for iterating. */
+    public synchronized Collection<KonThread> getThreads() {
+        return new ArrayList<>(mMap.values());
     }
 
     public void save() {
@@ -110,7 +115,7 @@ public final class ThreadList extends Observable {
         }
     }
 
-    public KonThread getThreadByUser(User user) {
+    public synchronized KonThread getThreadByUser(User user) {
         for (KonThread thread : mMap.values()) {
             Set<User> threadUser = thread.getUser();
             if (threadUser.size() == 1 && threadUser.contains(user))
@@ -121,21 +126,21 @@ public final class ThreadList extends Observable {
         return this.createNewThread(userSet);
     }
 
-    public KonThread createNewThread(Set<User> user) {
+    public synchronized KonThread createNewThread(Set<User> user) {
         KonThread newThread = new KonThread(user);
         mMap.put(newThread.getID(), newThread);
         this.changed();
         return newThread;
     }
 
-    public Optional<KonThread> getThreadByID(int id) {
+    public synchronized Optional<KonThread> getThreadByID(int id) {
         KonThread thread = mMap.get(id);
         if (thread == null)
             LOGGER.warning("can't find thread with id: "+id);
         return Optional.ofNullable(thread);
     }
 
-    public Optional<KonThread> getThreadByXMPPID(String xmppThreadID) {
+    public synchronized Optional<KonThread> getThreadByXMPPID(String xmppThreadID) {
         if (xmppThreadID == null || xmppThreadID.isEmpty()) {
             return Optional.empty();
         }
@@ -147,13 +152,24 @@ public final class ThreadList extends Observable {
     }
 
     public void deleteThreadWithID(int id) {
-        KonThread thread = mMap.remove(id);
+        KonThread thread;
+        synchronized (this) {
+            thread = mMap.remove(id);
+        }
         if (thread == null) {
             LOGGER.warning("can't delete thread, not found. id: "+id);
             return;
         }
+        // attachment files can be deleted too
+        List<Attachment> attachments = new ArrayList<>();
+        for (KonMessage message : thread.getMessages()) {
+            Optional<Attachment> optAttachment = message.getContent().getAttachment();
+            if (optAttachment.isPresent())
+                attachments.add(optAttachment.get());
+        }
         thread.delete();
         this.changed();
+        AttachmentStore.getInstance().delete(attachments);
     }
 
     private synchronized void changed() {
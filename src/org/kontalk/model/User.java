@@ -172,18 +172,24 @@ public final class User {
         return this.mAvailable;
     }
 
-    public void setPresence(Presence.Type type, String status) {
+    /**
+     * Set the presence. The user list is not notified.
+     * @return true if the presence changed
+     */
+    public boolean setPresence(Presence.Type type, String status) {
+        Available oldAvailable = mAvailable;
+        String oldStatus = mStatus;
         if (type == Presence.Type.available) {
             mAvailable = Available.YES;
             mLastSeen = Optional.of(new Date());
         } else if (type == Presence.Type.unavailable) {
             mAvailable = Available.NO;
         }
-        UserList.getInstance().changed();
 
         if (status != null && !status.isEmpty()) {
             mStatus = status;
         }
+        return mAvailable != oldAvailable || !mStatus.equals(oldStatus);
     }
 
 
@@ -20,6 +20,7 @@ package org.kontalk.model;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
@@ -75,8 +76,9 @@ public final class UserList extends Observable {
         this.changed();
     }
 
-    public Collection<User> getAll() {
-            return mMap.values();
+    /** Return a copy of all users, safe for iterating. */
+    public synchronized Collection<User> getAll() {
+        return new ArrayList<>(mMap.values());
     }
 
     /**
@@ -85,7 +87,7 @@ public final class UserList extends Observable {
      * @param name nickname of new user, use an empty string if not known
      * @return the newly created user, if one was created
      */
-    public Optional<User> add(String jid, String name) {
+    public synchronized Optional<User> add(String jid, String name) {
         jid = XmppStringUtils.parseBareJid(jid);
         if (mMap.containsKey(jid)) {
             LOGGER.warning("user already exists, jid: "+jid);
@@ -104,7 +106,7 @@ public final class UserList extends Observable {
         }
     }
 
-    public Optional<User> get(int id) {
+    public synchronized Optional<User> get(int id) {
         // TODO performance
         for (User user: mMap.values()) {
             if (user.getID() == id)
@@ -120,7 +122,7 @@ public final class UserList extends Observable {
      * @param jid
      * @return
      */
-    public Optional<User> get(String jid) {
+    public synchronized Optional<User> get(String jid) {
         jid = XmppStringUtils.parseBareJid(jid);
         return Optional.ofNullable(mMap.get(jid));
     }
@@ -131,7 +133,7 @@ public final class UserList extends Observable {
      * @param jid
      * @return
      */
-    public boolean contains(String jid) {
+    public synchronized boolean contains(String jid) {
         jid = XmppStringUtils.parseBareJid(jid);
         return mMap.containsKey(jid);
     }
@@ -0,0 +1,319 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FilenameUtils;
+import org.kontalk.Kontalk;
+import org.kontalk.model.InMessage;
+import org.kontalk.model.KonMessage;
+import org.kontalk.model.KonThread;
+import org.kontalk.model.MessageContent.Attachment;
+import org.kontalk.model.ThreadList;
+import org.kontalk.util.EncodingUtils;
+
+/**
+ * Content-addressed storage for attachment files.
+ *
+ * Every (decrypted) attachment file is stored once, named by the SHA-256 hash
+ * of its content, in a hidden subdirectory. The files named like the
+ * attachment in the attachment directory are hard links to these. A stored
+ * file is referenced by all attachments with its hash and deleted when there
+ * is none left.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class AttachmentStore {
+    private final static Logger LOGGER = Logger.getLogger(AttachmentStore.class.getName());
+
+    private final static String STORE_DIR = ".store";
+    private final static int BUFFER_SIZE = 1 << 13;
+
+    private static AttachmentStore INSTANCE = null;
+
+    private final File mBaseDir;
+    private final File mStoreDir;
+
+    private AttachmentStore(File baseDir) {
+        mBaseDir = baseDir;
+        mStoreDir = new File(baseDir, STORE_DIR);
+        boolean created = mStoreDir.mkdirs();
+        if (created)
+            LOGGER.info("created store directory");
+    }
+
+    /**
+     * Add the attachment file of a message to the store and save the hash to
+     * the message. If a file with the same content is already stored, the
+     * attachment file is replaced by a link to it.
+     * @return the hash of the file content, empty if not stored
+     */
+    public synchronized String add(KonMessage message) {
+        Optional<Attachment> optAttachment = message.getContent().getAttachment();
+        if (!optAttachment.isPresent())
+            return "";
+        File file = new File(mBaseDir, optAttachment.get().getFileName());
+        String hash;
+        try {
+            hash = hash(file);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't read attachment file", ex);
+            return "";
+        }
+
+        File stored = new File(mStoreDir, hash);
+        try {
+            if (stored.exists()) {
+                LOGGER.info("attachment already stored: "+hash);
+                // replace the file at once, the name stays taken
+                File temp = new File(mStoreDir, hash + ".link");
+                Files.deleteIfExists(temp.toPath());
+                link(temp, stored);
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                link(stored, file);
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't store attachment file", ex);
+            return "";
+        }
+        // referenced before the lock is released
+        message.setAttachmentHash(hash);
+        return hash;
+    }
+
+    /**
+     * Copy a file into the attachment directory, e.g. to send it. The new file
+     * is named like the source or with an added number if the name is used.
+     * @param source the file to copy
+     * @return the new file, empty if the file can't be copied
+     */
+    public Optional<File> importFile(Path source) {
+        File temp = null;
+        try {
+            // copied under another name first, the file is complete when it
+            // appears
+            temp = File.createTempFile(".import", ".tmp", mBaseDir);
+            Files.copy(source, temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return Optional.of(moveToUnique(temp, mBaseDir, source.getFileName().toString()));
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't copy file to attachment directory", ex);
+            if (temp != null)
+                temp.delete();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Create a new attachment file of a message for already stored content
+     * and save the file name and hash to the message.
+     * @param hash the hash of the stored content
+     * @param fileName the preferred file name
+     * @return the name of the new file, empty if content is not stored
+     */
+    public synchronized String link(InMessage message, String hash, String fileName) {
+        File stored = new File(mStoreDir, hash);
+        if (hash.isEmpty() || !stored.exists())
+            return "";
+        File file;
+        try {
+            file = linkToUnique(mBaseDir, fileName, stored);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't link attachment file", ex);
+            return "";
+        }
+        message.setAttachmentFileName(file.getName());
+        message.setAttachmentHash(hash);
+        return file.getName();
+    }
+
+    /**
+     * Find a stored attachment that was downloaded from an URL.
+     */
+    public synchronized Optional<Attachment> findByURL(String url) {
+        for (KonThread thread : ThreadList.getInstance().getThreads()) {
+            for (KonMessage message : thread.getMessages()) {
+                Optional<Attachment> optAttachment = message.getContent().getAttachment();
+                if (optAttachment.isPresent() &&
+                        !optAttachment.get().getHash().isEmpty() &&
+                        optAttachment.get().getURL().equals(url))
+                    return optAttachment;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Delete the files of attachments that are no longer used and the stored
+     * content that is not referenced anymore.
+     */
+    public synchronized void delete(Collection<Attachment> attachments) {
+        for (Attachment attachment : attachments) {
+            // the kept encrypted file too
+            for (String fileName : new String[]{attachment.getFileName(),
+                    attachment.getEncryptedFileName()}) {
+                if (fileName.isEmpty())
+                    continue;
+                File file = new File(mBaseDir, fileName);
+                if (file.exists() && !file.delete())
+                    LOGGER.warning("can't delete attachment file: "+file);
+            }
+        }
+        this.collectGarbage();
+    }
+
+    /**
+     * Delete all stored content that is not referenced by any attachment.
+     */
+    public synchronized void collectGarbage() {
+        Set<String> referenced = new HashSet<>();
+        for (KonThread thread : ThreadList.getInstance().getThreads()) {
+            for (KonMessage message : thread.getMessages()) {
+                Optional<Attachment> optAttachment = message.getContent().getAttachment();
+                if (optAttachment.isPresent())
+                    referenced.add(optAttachment.get().getHash());
+            }
+        }
+
+        File[] stored = mStoreDir.listFiles();
+        if (stored == null)
+            return;
+        int deleted = 0;
+        for (File file : stored) {
+            if (referenced.contains(file.getName()))
+                continue;
+            if (file.delete())
+                deleted++;
+            else
+                LOGGER.warning("can't delete stored file: "+file);
+        }
+        LOGGER.info("deleted "+deleted+" unreferenced attachment files");
+    }
+
+    /**
+     * Create a hard link; if not supported by the file system, copy the file.
+     * An existing file is never replaced.
+     */
+    private static void link(File link, File existing) throws IOException {
+        try {
+            Files.createLink(link.toPath(), existing.toPath());
+        } catch (FileAlreadyExistsException ex) {
+            throw ex;
+        } catch (UnsupportedOperationException | FileSystemException ex) {
+            // e.g. links not supported or on another device
+            LOGGER.log(Level.INFO, "can't create link, copying file", ex);
+            Files.copy(existing.toPath(), link.toPath());
+        }
+    }
+
+    /**
+     * Create a link to a file in a directory, named like the given name or
+     * with an added number if the name is already used.
+     */
+    private static File linkToUnique(File dir, String fileName, File existing)
+            throws IOException {
+        for (int i = 0; ; i++) {
+            File file = numberedFile(dir, fileName, i);
+            try {
+                link(file, existing);
+            } catch (FileAlreadyExistsException ex) {
+                continue;
+            }
+            return file;
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every JVM supports SHA-256
+            throw new IllegalStateException(ex);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) > 0)
+                md.update(buf, 0, len);
+        }
+        return EncodingUtils.bytesToHex(md.digest()).toLowerCase();
+    }
+
+    /**
+     * Move a file into a directory, named like the given name or with an
+     * added number if the name is already used. The name is claimed
+     * atomically, files moved at the same time never get the same name.
+     * @return the moved file
+     */
+    public static File moveToUnique(File source, File dir, String fileName)
+            throws IOException {
+        for (int i = 0; ; i++) {
+            File file = numberedFile(dir, fileName, i);
+            try {
+                Files.createFile(file.toPath());
+            } catch (FileAlreadyExistsException ex) {
+                continue;
+            }
+            // replacing the empty file just created
+            try {
+                Files.move(source.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                file.delete();
+                throw ex;
+            }
+            return file;
+        }
+    }
+
+    /** File name with number, "name (i).ext", or the name itself for 0. */
+    private static File numberedFile(File dir, String fileName, int i) {
+        if (i == 0)
+            return new File(dir, fileName);
+        String base = FilenameUtils.getBaseName(fileName);
+        String ext = FilenameUtils.getExtension(fileName);
+        ext = ext.isEmpty() ? "" : "." + ext;
+        return new File(dir, base + " (" + i + ")" + ext);
+    }
+
+    public static synchronized AttachmentStore getInstance() {
+        if (INSTANCE == null)
+            INSTANCE = new AttachmentStore(new File(Kontalk.getConfigDir(), "attachments"));
+        return INSTANCE;
+    }
+}
@@ -18,11 +18,20 @@
 
 package org.kontalk.system;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Optional;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -42,6 +51,7 @@ import org.kontalk.model.InMessage;
 import org.kontalk.model.KonMessage;
 import org.kontalk.model.KonThread;
 import org.kontalk.model.MessageContent;
+import org.kontalk.model.MessageContent.Attachment;
 import org.kontalk.model.MessageList;
 import org.kontalk.model.OutMessage;
 import org.kontalk.model.ThreadList;
@@ -63,21 +73,47 @@ public final class ControlCenter extends Observable {
         DISCONNECTED,
         CONNECTING,
         CONNECTED,
+        /** Waiting for the next automatic attempt to connect. */
+        RECONNECTING,
         SHUTTING_DOWN,
         FAILED,
         ERROR
     }
 
     private final Client mClient;
+    private final Uploader mUploader;
+    /** Decrypts messages waiting for a key, one batch after another. */
+    private final ExecutorService mDecryptExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Decrypt Pending");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Copies files to send into the attachment directory. */
+    private final ExecutorService mAttachmentExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Send Attachment");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     private Status mCurrentStatus = Status.DISCONNECTED;
 
     public ControlCenter() {
         mClient = new Client(this);
+        mUploader = new Uploader(this, mClient);
     }
 
     public void launch() {
         new Thread(mClient).start();
+        new Thread(mUploader, "Uploader").start();
 
         // use password option to determine if account was imported
         KonConf config = KonConf.getInstance();
@@ -131,6 +167,7 @@ public final class ControlCenter extends Observable {
         mClient.disconnect();
     }
 
+    /** Create and send a text message to all users of a thread. */
     public void sendText(KonThread thread, String text) {
         // TODO no group chat support yet
         Set<User> user = thread.getUser();
@@ -138,16 +175,69 @@ public final class ControlCenter extends Observable {
             OutMessage newMessage = newOutMessage(
                     thread,
                     oneUser,
-                    text,
+                    new MessageContent(text),
                     oneUser.getEncrypted());
             mClient.sendMessage(newMessage);
         }
     }
 
+    /**
+     * Send a file as attachment to all users of a thread. The file is copied
+     * to the attachment directory and uploaded before the message is sent.
+     * Does not block, the file is copied on a worker thread.
+     */
+    public void sendAttachment(final KonThread thread, final Path path) {
+        mAttachmentExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ControlCenter.this.sendAttachmentAsync(thread, path);
+            }
+        });
+    }
+
+    private void sendAttachmentAsync(KonThread thread, Path path) {
+        String mimeType = null;
+        try {
+            mimeType = Files.probeContentType(path);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't get content type", ex);
+        }
+        if (mimeType == null)
+            mimeType = "application/octet-stream";
+
+        AttachmentStore store = AttachmentStore.getInstance();
+        // TODO no group chat support yet
+        Set<User> user = thread.getUser();
+        for (User oneUser: user) {
+            // every message has its own file
+            Optional<File> optFile = store.importFile(path);
+            if (!optFile.isPresent())
+                continue;
+            Attachment attachment = new Attachment(optFile.get().toPath(),
+                    mimeType,
+                    oneUser.getEncrypted());
+            OutMessage newMessage = newOutMessage(
+                    thread,
+                    oneUser,
+                    new MessageContent("", Optional.of(attachment), ""),
+                    oneUser.getEncrypted());
+            store.add(newMessage);
+            mUploader.queueUpload(newMessage);
+        }
+    }
+
     public void sendUserBlocking(User user, boolean blocking) {
         mClient.sendBlockingCommand(user.getJID(), blocking);
     }
 
+    /**
+     * The thread currently shown in the view; its attachments are
+     * downloaded first.
+     */
+    public void setCurrentThread(KonThread thread) {
+        Downloader.getInstance().setPriorityThread(thread);
+    }
+
     public Status getCurrentStatus() {
         return mCurrentStatus;
     }
@@ -164,17 +254,23 @@ public final class ControlCenter extends Observable {
         this.notifyObservers(new ViewEvent.StatusChanged());
 
         if (status == Status.CONNECTED) {
-            // send all pending messages
+            // send all pending messages, upload attachments first
             for (OutMessage m : MessageList.getInstance().getPendingMessages()) {
-                mClient.sendMessage(m);
+                Optional<Attachment> optAttachment = m.getContent().getAttachment();
+                if (optAttachment.isPresent() && optAttachment.get().getURL().isEmpty())
+                    mUploader.queueUpload(m);
+                else
+                    mClient.sendMessage(m);
             }
-            // send public key requests for Kontalk users with missing key
+            // requests of a resumed stream are still answered
+            if (mClient.isResumed())
+                return;
+            // request public keys for Kontalk users with missing key,
+            // the requests are spread over time
             for (User user : UserList.getInstance().getAll()) {
                 // TODO only for domains that are part of the Kontalk network
-                if (user.getFingerprint().isEmpty()) {
-                    LOGGER.info("public key missing for user, requesting it...");
-                    mClient.sendPublicKeyRequest(user.getJID());
-                }
+                if (user.getFingerprint().isEmpty())
+                    mClient.requestPublicKey(user.getJID(), "");
             }
 
         }
@@ -195,8 +291,10 @@ public final class ControlCenter extends Observable {
      * save and process the message.
      * @return the new created message
      */
-    public OutMessage newOutMessage(KonThread thread, User user, String text, boolean encrypted) {
-        MessageContent content = new MessageContent(text);
+    public OutMessage newOutMessage(KonThread thread,
+            User user,
+            MessageContent content,
+            boolean encrypted) {
         OutMessage.Builder builder = new OutMessage.Builder(thread, user, encrypted);
         builder.content(content);
         OutMessage newMessage = builder.build();
@@ -252,12 +350,54 @@ public final class ControlCenter extends Observable {
         if (!message.getCoderStatus().getErrors().isEmpty()) {
             this.handleSecurityErrors(message);
         }
+        // message is decrypted again when the key arrives
+        if (message.getCoderStatus().hasSecurityError(Coder.Error.KEY_UNAVAILABLE))
+            mClient.requestPublicKey(message.getJID(), "");
 
         if (message.getContent().getAttachment().isPresent()) {
             Downloader.getInstance().queueDownload(message);
         }
     }
 
+    /**
+     * Decrypt all messages of a user that are waiting for the user's public key
+     * in one background batch.
+     */
+    private void decryptKeyMissingMessages(final User user) {
+        final SortedSet<InMessage> messages =
+                MessageList.getInstance().pollKeyMissingMessages(user);
+        if (messages.isEmpty())
+            return;
+
+        LOGGER.info("decrypting "+messages.size()+" pending messages of user: "+user);
+        mDecryptExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int total = messages.size();
+                int done = 0;
+                int failed = 0;
+                ControlCenter.this.decryptionProgress(user, done, total);
+                for (InMessage message : messages) {
+                    Coder.processInMessage(message);
+                    if (!message.getCoderStatus().getErrors().isEmpty())
+                        ControlCenter.this.handleSecurityErrors(message);
+                    if (message.getCoderStatus().isEncrypted())
+                        failed++;
+                    else if (message.getContent().getAttachment().isPresent())
+                        Downloader.getInstance().queueDownload(message);
+                    ControlCenter.this.decryptionProgress(user, ++done, total);
+                }
+                if (failed > 0)
+                    LOGGER.warning("can't decrypt "+failed+" of "+total+" pending messages");
+            }
+        });
+    }
+
+    private void decryptionProgress(User user, int done, int total) {
+        this.setChanged();
+        this.notifyObservers(new ViewEvent.DecryptionProgress(user, done, total));
+    }
+
     /**
      * Set the receipt status of a message.
      * @param xmppID XMPP ID of message
@@ -315,13 +455,24 @@ public final class ControlCenter extends Observable {
             this.addUser(jid, name);
     }
 
-    public void setPresence(String jid, Presence.Type type, String status) {
-        Optional<User> optUser = UserList.getInstance().get(jid);
-        if (!optUser.isPresent()) {
-            LOGGER.warning("(presence) can't find user with jid: "+jid);
-            return;
+    /**
+     * Set the latest presence of users and update the user list once.
+     * @param presences presence by bare JID
+     */
+    public void setPresence(Map<String, Presence> presences) {
+        boolean changed = false;
+        for (Map.Entry<String, Presence> entry : presences.entrySet()) {
+            Optional<User> optUser = UserList.getInstance().get(entry.getKey());
+            if (!optUser.isPresent()) {
+                LOGGER.warning("(presence) can't find user with jid: "+entry.getKey());
+                continue;
+            }
+            // ignoring mode, always null anyway
+            Presence presence = entry.getValue();
+            changed |= optUser.get().setPresence(presence.getType(), presence.getStatus());
         }
-        optUser.get().setPresence(type, status);
+        if (changed)
+            UserList.getInstance().changed();
     }
 
     public void checkFingerprint(String jid, String fingerprint) {
@@ -334,7 +485,7 @@ public final class ControlCenter extends Observable {
         User user = optUser.get();
         if (!user.getFingerprint().equals(fingerprint)) {
             LOGGER.info("detected public key change, requesting new key...");
-            mClient.sendPublicKeyRequest(user.getJID());
+            mClient.requestPublicKey(user.getJID(), fingerprint);
         }
     }
 
@@ -366,6 +517,7 @@ public final class ControlCenter extends Observable {
                 user.setName(userName);
         }
 
+        this.decryptKeyMissingMessages(user);
     }
 
     public void setBlockedUser(List<String> jids) {
@@ -409,7 +561,7 @@ public final class ControlCenter extends Observable {
         }
 
         // send request for public key
-        mClient.sendPublicKeyRequest(optNewUser.get().getJID());
+        mClient.requestPublicKey(optNewUser.get().getJID(), "");
 
         // TODO when to add new user to roster!?
 
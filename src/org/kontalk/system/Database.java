@@ -100,6 +100,10 @@ public final class Database {
                     KonMessage.TABLE +
                     " " +
                     KonMessage.CREATE_TABLE);
+            stat.executeUpdate(create +
+                    DownloadJob.TABLE +
+                    " " +
+                    DownloadJob.CREATE_TABLE);
         } catch (SQLException ex) {
             LOGGER.log(Level.SEVERE, "can't create tables", ex);
             throw new KonException(KonException.Error.DB, ex);
@@ -152,7 +156,7 @@ public final class Database {
      * @param values arbitrary objects that are inserted
      * @return id value of inserted row, -1 if something went wrong
      */
-    public int execInsert(String table, List<Object> values) {
+    public synchronized int execInsert(String table, List<Object> values) {
         // first column is the id
         String insert = "INSERT INTO " + table + " VALUES (NULL,";
 
@@ -181,7 +185,7 @@ public final class Database {
      * @param id
      * @return id value of updated row, 0 if something went wrong
      */
-    public int execUpdate(String table, Map<String, Object> set, int id) {
+    public synchronized int execUpdate(String table, Map<String, Object> set, int id) {
         String update = "UPDATE OR FAIL " + table + " SET ";
 
         List<String> keyList = new ArrayList<>(set.keySet());
@@ -207,7 +211,7 @@ public final class Database {
         }
     }
 
-    public boolean execDelete(String table, int id) {
+    public synchronized boolean execDelete(String table, int id) {
         LOGGER.info("deleting id "+id+" from table "+table);
         try (Statement stat = mConn.createStatement()) {
             stat.executeUpdate("DELETE FROM " + table + " WHERE _id = " + id);
@@ -239,6 +243,8 @@ public final class Database {
                 stat.setString(i+1, (String) value);
             } else if (value instanceof Integer) {
                 stat.setInt(i+1, (int) value);
+            } else if (value instanceof Long) {
+                stat.setLong(i+1, (long) value);
             } else if (value instanceof Date) {
                 stat.setLong(i+1, ((Date) value).getTime());
             } else if (value instanceof Boolean) {
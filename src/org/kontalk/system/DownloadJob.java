@@ -0,0 +1,172 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kontalk.model.InMessage;
+import org.kontalk.model.KonMessage;
+
+/**
+ * Persistent state of an attachment download.
+ * A job exists until the attachment of the message is downloaded.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+final class DownloadJob {
+    private final static Logger LOGGER = Logger.getLogger(DownloadJob.class.getName());
+
+    static final String TABLE = "downloads";
+    static final String CREATE_TABLE = "( " +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "message_id INTEGER UNIQUE NOT NULL, " +
+            // enum, state of download
+            "state INTEGER NOT NULL, " +
+            // number of failed download runs
+            "attempts INTEGER NOT NULL, " +
+            // size of partial file after last run
+            "bytes_done INTEGER NOT NULL, " +
+            "FOREIGN KEY (message_id) REFERENCES "+KonMessage.TABLE+" (_id) " +
+            "ON DELETE CASCADE" +
+            ")";
+
+    enum State {
+        /** Waiting in queue. */
+        QUEUED,
+        /** Currently downloading (if stored: client exited while downloading). */
+        RUNNING,
+        /** Last run failed. */
+        FAILED
+    };
+
+    private int mID;
+    private final InMessage mMessage;
+    private State mState;
+    private int mAttempts;
+    private long mBytesDone;
+
+    // used when creating a new job
+    DownloadJob(InMessage message) {
+        mMessage = message;
+        mState = State.QUEUED;
+        mAttempts = 0;
+        mBytesDone = 0;
+
+        List<Object> values = new LinkedList<>();
+        values.add(mMessage.getID());
+        values.add(mState);
+        values.add(mAttempts);
+        values.add(mBytesDone);
+        mID = Database.getInstance().execInsert(TABLE, values);
+        if (mID < 1)
+            LOGGER.warning("couldn't insert download job");
+    }
+
+    // used when loading from database
+    private DownloadJob(int id, InMessage message, State state, int attempts, long bytesDone) {
+        mID = id;
+        mMessage = message;
+        mState = state;
+        mAttempts = attempts;
+        mBytesDone = bytesDone;
+    }
+
+    InMessage getMessage() {
+        return mMessage;
+    }
+
+    State getState() {
+        return mState;
+    }
+
+    int getAttempts() {
+        return mAttempts;
+    }
+
+    long getBytesDone() {
+        return mBytesDone;
+    }
+
+    void setState(State state) {
+        mState = state;
+        this.save();
+    }
+
+    void setFailed(long bytesDone) {
+        mState = State.FAILED;
+        mAttempts++;
+        mBytesDone = bytesDone;
+        this.save();
+    }
+
+    private void save() {
+        if (mID < 1)
+            return;
+        Map<String, Object> set = new HashMap<>();
+        set.put("state", mState);
+        set.put("attempts", mAttempts);
+        set.put("bytes_done", mBytesDone);
+        Database.getInstance().execUpdate(TABLE, set, mID);
+    }
+
+    void delete() {
+        if (mID < 1)
+            return;
+        Database.getInstance().execDelete(TABLE, mID);
+        mID = -1;
+    }
+
+    /**
+     * Load the stored jobs for messages. Jobs for messages not in the map
+     * (attachment already downloaded) are deleted.
+     * @param messages the messages with missing attachment, by message ID
+     */
+    static List<DownloadJob> load(Map<Integer, InMessage> messages) {
+        List<DownloadJob> jobs = new ArrayList<>();
+        List<Integer> obsolete = new ArrayList<>();
+        Database db = Database.getInstance();
+        State[] stateValues = State.values();
+        try (ResultSet resultSet = db.execSelectAll(TABLE)) {
+            while (resultSet.next()) {
+                int id = resultSet.getInt("_id");
+                InMessage message = messages.get(resultSet.getInt("message_id"));
+                if (message == null) {
+                    obsolete.add(id);
+                    continue;
+                }
+                jobs.add(new DownloadJob(id,
+                        message,
+                        stateValues[resultSet.getInt("state")],
+                        resultSet.getInt("attempts"),
+                        resultSet.getLong("bytes_done")));
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't load download jobs from db", ex);
+        }
+        for (int id : obsolete)
+            db.execDelete(TABLE, id);
+        return jobs;
+    }
+}
@@ -19,12 +19,22 @@
 package org.kontalk.system;
 
 import java.io.File;
-import java.security.PrivateKey;
-import java.security.cert.X509Certificate;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
 import org.bouncycastle.openpgp.PGPException;
 import org.kontalk.Kontalk;
 import org.kontalk.client.DownloadClient;
@@ -33,20 +43,53 @@ import org.kontalk.crypto.PersonalKey;
 import org.kontalk.misc.KonException;
 import org.kontalk.model.Account;
 import org.kontalk.model.InMessage;
+import org.kontalk.model.KonThread;
+import org.kontalk.model.MessageList;
 import org.kontalk.model.MessageContent.Attachment;
+import org.kontalk.util.TrustUtils;
 
 /**
  * Downloader for attachments.
+ * Downloads run in parallel on a fixed number of worker threads with a limit
+ * of concurrent downloads per host. Attachments in the thread currently shown
+ * are downloaded first, then the newest. The bandwidth can be limited; it is
+ * shared by priority classes with more for the current thread and recent
+ * messages. Unfinished downloads are stored in the database and resumed on
+ * next start. Downloads of the same URL (e.g. a forwarded attachment) never
+ * run at the same time, they share the partial file.
  * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
  */
-public class Downloader implements Runnable {
+public class Downloader {
     private final static Logger LOGGER = Logger.getLogger(Downloader.class.getName());
 
     private static Downloader INSTANCE = null;
 
-    private final LinkedBlockingQueue<InMessage> mQueue = new LinkedBlockingQueue<>();
+    /** Maximum number of failed runs before a job is not resumed anymore. */
+    private final static int MAX_JOB_ATTEMPTS = 5;
+    /** Attachments of messages younger than this are not background downloads. */
+    private final static long RECENT_AGE = TimeUnit.DAYS.toMillis(1);
+
+    /** Waiting downloads. */
+    private final LinkedList<DownloadJob> mQueue = new LinkedList<>();
+    /** All unfinished downloads, by message ID. */
+    private final Map<Integer, DownloadJob> mJobs = new HashMap<>();
+    /** Number of running downloads for each host. */
+    private final Map<String, Integer> mHostDownloads = new HashMap<>();
+    /** URLs of running downloads. */
+    private final Set<String> mRunningURLs = new HashSet<>();
 
     private final File mBaseDir;
+    private final int mMaxDownloads;
+    private final int mMaxHostDownloads;
+    private final long mMaxRate;
+
+    private KonThread mPriorityThread = null;
+
+    /** The shared HTTP client and the SSL context it was created with. */
+    private DownloadClient mClient = null;
+    private SSLContext mClientContext = null;
+    /** Number of running transfers for each client, replaced ones included. */
+    private final Map<DownloadClient, Integer> mClientTransfers = new HashMap<>();
 
     private Downloader() {
         String dirPath = Kontalk.getConfigDir() + "/attachments";
@@ -54,91 +97,361 @@ public class Downloader implements Runnable {
         boolean created = mBaseDir.mkdirs();
         if (created)
             LOGGER.info("created download directory");
+
+        KonConf conf = KonConf.getInstance();
+        mMaxDownloads = Math.max(1, conf.getInt(KonConf.NET_MAX_DOWNLOADS));
+        mMaxHostDownloads = Math.max(1, conf.getInt(KonConf.NET_MAX_HOST_DOWNLOADS));
+        mMaxRate = Math.max(0, conf.getLong(KonConf.NET_MAX_DOWNLOAD_RATE)) * 1024;
+    }
+
+    public synchronized void queueDownload(InMessage message) {
+        DownloadJob job = mJobs.get(message.getID());
+        if (job == null) {
+            job = new DownloadJob(message);
+        } else if (job.getState() != DownloadJob.State.FAILED) {
+            LOGGER.info("download already queued, message id: "+message.getID());
+            return;
+        }
+        this.queueJob(job);
     }
 
-    public void queueDownload(InMessage message) {
-        boolean added = mQueue.offer(message);
-        if (!added) {
-            LOGGER.warning("can't add message to download-queue");
+    private synchronized void queueJob(DownloadJob job) {
+        job.setState(DownloadJob.State.QUEUED);
+        mJobs.put(job.getMessage().getID(), job);
+        mQueue.add(job);
+        this.notifyAll();
+    }
+
+    /**
+     * Queue all stored unfinished downloads and attachments that were never
+     * downloaded. Must be called after messages are loaded.
+     */
+    public synchronized void resumeDownloads() {
+        Map<Integer, InMessage> messages = new HashMap<>();
+        for (InMessage message : MessageList.getInstance().getMissingAttachmentMessages())
+            messages.put(message.getID(), message);
+
+        int resumed = 0;
+        for (DownloadJob job : DownloadJob.load(messages)) {
+            messages.remove(job.getMessage().getID());
+            if (job.getAttempts() >= MAX_JOB_ATTEMPTS) {
+                // only on request
+                job.setState(DownloadJob.State.FAILED);
+                mJobs.put(job.getMessage().getID(), job);
+                continue;
+            }
+            this.queueJob(job);
+            resumed++;
         }
+        for (InMessage message : messages.values())
+            this.queueDownload(message);
+
+        LOGGER.info("resumed "+resumed+" downloads, queued "+messages.size()+" new");
+    }
+
+    /**
+     * Set the thread whose attachments are downloaded before all others.
+     */
+    public synchronized void setPriorityThread(KonThread thread) {
+        mPriorityThread = thread;
     }
 
     public File getBaseDir() {
         return mBaseDir;
     }
 
-    private void downloadAsync(final InMessage message) {
+    /**
+     * Take the next download from the queue, waiting until one is available
+     * for a host below the download limit. Downloads in the priority thread
+     * come first, else the newest message.
+     */
+    private synchronized DownloadJob takeNext() throws InterruptedException {
+        while (true) {
+            DownloadJob next = null;
+            boolean nextPriority = false;
+            for (DownloadJob job : mQueue) {
+                InMessage message = job.getMessage();
+                Integer running = mHostDownloads.get(getHost(message));
+                if (running != null && running >= mMaxHostDownloads)
+                    continue;
+                if (mRunningURLs.contains(getURL(message)))
+                    continue;
+                boolean priority = message.getThread() == mPriorityThread;
+                if (next == null ||
+                        (priority && !nextPriority) ||
+                        (priority == nextPriority &&
+                        message.getDate().after(next.getMessage().getDate()))) {
+                    next = job;
+                    nextPriority = priority;
+                }
+            }
+            if (next != null) {
+                mQueue.remove(next);
+                String host = getHost(next.getMessage());
+                Integer running = mHostDownloads.get(host);
+                mHostDownloads.put(host, running == null ? 1 : running + 1);
+                mRunningURLs.add(getURL(next.getMessage()));
+                next.setState(DownloadJob.State.RUNNING);
+                return next;
+            }
+            // blocking
+            this.wait();
+        }
+    }
+
+    private synchronized void finished(DownloadJob job, boolean success) {
+        InMessage message = job.getMessage();
+        String host = getHost(message);
+        Integer running = mHostDownloads.get(host);
+        if (running == null || running <= 1)
+            mHostDownloads.remove(host);
+        else
+            mHostDownloads.put(host, running - 1);
+        mRunningURLs.remove(getURL(message));
+
+        if (success) {
+            mJobs.remove(message.getID());
+            job.delete();
+        } else {
+            Optional<Attachment> optAttachment = message.getContent().getAttachment();
+            job.setFailed(optAttachment.isPresent() ?
+                    DownloadClient.getPartialBytes(mBaseDir, optAttachment.get().getURL()) :
+                    0);
+            // replaces the last progress
+            message.setAttachmentDownloadProgress(-3, -1, -1);
+        }
+        this.notifyAll();
+    }
+
+    /**
+     * Get the shared HTTP client for a download or upload; a new client is
+     * created if the SSL context changed (new key or different certificate
+     * validation). The client must be released after the transfer.
+     */
+    synchronized Optional<DownloadClient> takeClient() {
         PersonalKey key;
         try {
             key = Account.getInstance().getPersonalKey();
         } catch (KonException ex) {
             LOGGER.log(Level.WARNING, "can't get personal key", ex);
-            return;
+            return Optional.empty();
         }
-        PrivateKey privateKey;
+        boolean validateCertificate = KonConf.getInstance().getBoolean(KonConf.SERV_CERT_VALIDATION);
+        SSLContext sslContext;
         try {
-            privateKey = key.getBridgePrivateKey();
-        } catch (PGPException ex) {
-            LOGGER.log(Level.WARNING, "can't get private bridge key", ex);
+            sslContext = TrustUtils.getCustomSSLContext(key, validateCertificate);
+        } catch (GeneralSecurityException | IOException | PGPException ex) {
+            LOGGER.log(Level.WARNING, "unable to set SSL context", ex);
+            return Optional.empty();
+        }
+        if (mClient == null) {
+            mClient = new DownloadClient(sslContext, mMaxDownloads, mMaxHostDownloads, mMaxRate);
+            mClientContext = sslContext;
+        } else if (sslContext != mClientContext) {
+            // running transfers still finish with the old client, the
+            // bandwidth limit is shared
+            DownloadClient old = mClient;
+            mClient = new DownloadClient(sslContext, old);
+            mClientContext = sslContext;
+            if (!mClientTransfers.containsKey(old))
+                old.close();
+        }
+        Integer running = mClientTransfers.get(mClient);
+        mClientTransfers.put(mClient, running == null ? 1 : running + 1);
+        return Optional.of(mClient);
+    }
+
+    /** A transfer with a client is finished, close the client if replaced. */
+    synchronized void releaseClient(DownloadClient client) {
+        Integer running = mClientTransfers.get(client);
+        if (running != null && running > 1) {
+            mClientTransfers.put(client, running - 1);
             return;
         }
-        X509Certificate bridgeCert = key.getBridgeCertificate();
-        boolean validateCertificate = KonConf.getInstance().getBoolean(KonConf.SERV_CERT_VALIDATION);
-        DownloadClient.ProgressListener listener = new DownloadClient.ProgressListener() {
-            @Override
-            public void updateProgress(int p) {
-                message.setAttachmentDownloadProgress(p);
-            }
-        };
-        DownloadClient client = new DownloadClient(privateKey,
-                bridgeCert,
-                validateCertificate,
-                listener);
+        mClientTransfers.remove(client);
+        if (client != mClient)
+            client.close();
+    }
 
+    /**
+     * Download the attachment of a message.
+     * @return false if the download failed and should be tried again later
+     */
+    private boolean download(final InMessage message) {
         Optional<Attachment> optAttachment = message.getContent().getAttachment();
         if (!optAttachment.isPresent()) {
             LOGGER.warning("no attachment in message");
-            return;
+            return true;
         }
         Attachment attachment = optAttachment.get();
+        boolean encrypted = attachment.getCoderStatus().isEncrypted();
+        AttachmentStore store = AttachmentStore.getInstance();
+
+        // same file downloaded (and decrypted) before?
+        Optional<Attachment> optStored = store.findByURL(attachment.getURL());
+        if (optStored.isPresent() &&
+                optStored.get().getCoderStatus().getEncryption() ==
+                (encrypted ? Coder.Encryption.DECRYPTED : Coder.Encryption.NOT)) {
+            Attachment stored = optStored.get();
+            String fileName = store.link(message, stored.getHash(), stored.getFileName());
+            if (!fileName.isEmpty()) {
+                LOGGER.info("attachment already downloaded: "+stored.getHash());
+                if (encrypted) {
+                    message.setAttachmentSigning(stored.getCoderStatus().getSigning());
+                    message.setAttachmentErrors(stored.getCoderStatus().getErrors());
+                    message.setDecryptedAttachment(fileName);
+                }
+                return true;
+            }
+        }
+
+        Optional<DownloadClient> optClient = this.takeClient();
+        if (!optClient.isPresent())
+            return false;
 
-        String path = client.download(attachment.getURL(), mBaseDir);
+        DownloadClient.ProgressListener listener = new DownloadClient.ProgressListener() {
+            @Override
+            public void updateProgress(int p, long rate, long eta) {
+                message.setAttachmentDownloadProgress(p, rate, eta);
+            }
+        };
+        // decrypt while downloading, saved after the download is verified
+        final AtomicReference<Coder.AttachmentResult> decryption = new AtomicReference<>();
+        Optional<DownloadClient.StreamHandler> optHandler = Optional.empty();
+        if (encrypted) {
+            optHandler = Optional.<DownloadClient.StreamHandler>of(new DownloadClient.StreamHandler() {
+                @Override
+                public void handle(InputStream in, String fileName) {
+                    Optional<Coder.AttachmentResult> optResult =
+                            Coder.decryptAttachment(message, in, fileName);
+                    if (optResult.isPresent())
+                        decryption.set(optResult.get());
+                }
+                @Override
+                public boolean keepData() {
+                    return KonConf.getInstance().getBoolean(KonConf.CRYPTO_KEEP_ENCRYPTED);
+                }
+                @Override
+                public void discard() {
+                    Coder.AttachmentResult result = decryption.getAndSet(null);
+                    if (result != null)
+                        result.discard();
+                }
+            });
+        }
+        // length is only known for the decrypted file
+        long length = encrypted ? -1 : attachment.getLength();
+        String path;
+        try {
+            path = optClient.get().download(attachment.getURL(),
+                    mBaseDir,
+                    length,
+                    this.getPriority(message),
+                    listener,
+                    optHandler);
+        } finally {
+            this.releaseClient(optClient.get());
+        }
         if (path.isEmpty()) {
             // could not be downloaded
-            return;
+            return false;
         }
+        // not existing if only the decrypted data was saved
+        File file = new File(path);
 
-        message.setAttachmentFileName(new File(path).getName());
+        Coder.AttachmentResult result = decryption.getAndSet(null);
+        boolean decrypted;
+        if (result != null) {
+            decrypted = result.commit();
+            // failed for a reason the file doesn't change
+            if (!decrypted && file.exists())
+                message.setAttachmentFileName(file.getName());
+        } else {
+            message.setAttachmentFileName(file.getName());
+            // download was continued, decrypt the whole file
+            decrypted = encrypted && Coder.processAttachment(message);
+        }
 
-        // decrypt file
-        if (attachment.getCoderStatus().isEncrypted()) {
-            Coder.processAttachment(message);
+        if (decrypted && file.exists()) {
+            if (KonConf.getInstance().getBoolean(KonConf.CRYPTO_KEEP_ENCRYPTED)) {
+                // deleted with the attachment
+                message.setAttachmentEncryptedFileName(file.getName());
+            } else {
+                boolean deleted = file.delete();
+                if (!deleted)
+                    LOGGER.warning("can't delete encrypted file: "+file.getAbsolutePath());
+            }
         }
+
+        // move (decrypted) file to store
+        if (!encrypted || decrypted)
+            store.add(message);
+        return true;
+    }
+
+    /**
+     * Priority class of a download: the thread currently shown, recent
+     * messages or the backlog.
+     */
+    private synchronized DownloadClient.Priority getPriority(InMessage message) {
+        if (message.getThread() == mPriorityThread)
+            return DownloadClient.Priority.HIGH;
+        long age = System.currentTimeMillis() - message.getDate().getTime();
+        return age < RECENT_AGE ?
+                DownloadClient.Priority.NORMAL :
+                DownloadClient.Priority.LOW;
     }
 
     public String getAttachmentDir() {
         return mBaseDir.getAbsolutePath();
     }
 
-    @Override
-    public void run() {
-        while (true) {
-            InMessage m;
-            try {
-                // blocking
-                m = mQueue.take();
-            } catch (InterruptedException ex) {
-                LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
-                return;
-            }
-            this.downloadAsync(m);
+    private void startWorkers() {
+        for (int i = 0; i < mMaxDownloads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        DownloadJob job;
+                        try {
+                            job = Downloader.this.takeNext();
+                        } catch (InterruptedException ex) {
+                            LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
+                            return;
+                        }
+                        boolean success = false;
+                        try {
+                            success = Downloader.this.download(job.getMessage());
+                        } finally {
+                            Downloader.this.finished(job, success);
+                        }
+                    }
+                }
+            }, "Downloader-" + i).start();
+        }
+    }
+
+    private static String getURL(InMessage message) {
+        Optional<Attachment> optAttachment = message.getContent().getAttachment();
+        return optAttachment.isPresent() ? optAttachment.get().getURL() : "";
+    }
+
+    private static String getHost(InMessage message) {
+        String url = getURL(message);
+        if (url.isEmpty())
+            return "";
+        try {
+            String host = new URI(url).getHost();
+            return host == null ? "" : host;
+        } catch (URISyntaxException ex) {
+            return "";
         }
     }
 
-    public static Downloader getInstance() {
+    public static synchronized Downloader getInstance() {
         if (INSTANCE == null) {
             INSTANCE = new Downloader();
-            new Thread(INSTANCE).start();
+            INSTANCE.startWorkers();
         }
         return INSTANCE;
     }
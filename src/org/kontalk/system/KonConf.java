@@ -51,10 +51,18 @@ public final class KonConf extends PropertiesConfiguration {
     public final static String VIEW_THREAD_BG = "view.thread_bg";
     public final static String NET_SEND_CHAT_STATE = "net.chatstate";
     public final static String NET_STATUS_LIST = "net.status_list";
+    public final static String NET_MAX_DOWNLOADS = "net.max_downloads";
+    public final static String NET_MAX_HOST_DOWNLOADS = "net.max_host_downloads";
+    public final static String NET_MAX_DOWNLOAD_RATE = "net.max_download_rate";
+    public final static String NET_AUTO_RECONNECT = "net.auto_reconnect";
+    public final static String NET_TRACE_LEVEL = "net.trace_level";
+    public final static String NET_TRACE_SAMPLE = "net.trace_sample";
     public final static String MAIN_CONNECT_STARTUP = "main.connect_startup";
     public final static String MAIN_TRAY = "main.tray";
     public final static String MAIN_TRAY_CLOSE = "main.tray_close";
     public final static String MAIN_ENTER_SENDS = "main.enter_sends";
+    public final static String CRYPTO_BACKEND = "crypto.backend";
+    public final static String CRYPTO_KEEP_ENCRYPTED = "crypto.keep_encrypted_files";
 
     // default server address
     //public final static String DEFAULT_SERV_NET = "kontalk.net";
@@ -90,10 +98,22 @@ public final class KonConf extends PropertiesConfiguration {
         map.put(VIEW_THREAD_BG, "");
         map.put(NET_SEND_CHAT_STATE, true);
         map.put(NET_STATUS_LIST, new String[]{""});
+        map.put(NET_MAX_DOWNLOADS, 4);
+        map.put(NET_MAX_HOST_DOWNLOADS, 2);
+        // in KiB/s, 0: no limit
+        map.put(NET_MAX_DOWNLOAD_RATE, 0);
+        map.put(NET_AUTO_RECONNECT, true);
+        // level of packet logging, e.g. "INFO"
+        map.put(NET_TRACE_LEVEL, "OFF");
+        // log only every n-th packet of a category
+        map.put(NET_TRACE_SAMPLE, 1);
         map.put(MAIN_CONNECT_STARTUP, true);
         map.put(MAIN_TRAY, true);
         map.put(MAIN_TRAY_CLOSE, false);
         map.put(MAIN_ENTER_SENDS, true);
+        // empty: choose by benchmark
+        map.put(CRYPTO_BACKEND, "");
+        map.put(CRYPTO_KEEP_ENCRYPTED, false);
 
         for(Entry<String, Object> e : map.entrySet()) {
             if (!this.containsKey(e.getKey())) {
@@ -0,0 +1,179 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kontalk.client.Client;
+import org.kontalk.client.DownloadClient;
+import org.kontalk.client.HTTPFileUpload;
+import org.kontalk.crypto.Coder;
+import org.kontalk.model.KonMessage.Status;
+import org.kontalk.model.MessageContent.Attachment;
+import org.kontalk.model.OutMessage;
+
+/**
+ * Uploader for attachments of outgoing messages.
+ * Attachments are uploaded one after another by a single worker thread to a
+ * slot of the upload service of the server (XEP-0363). The attachment of an
+ * encrypted message is encrypted for the receiver into a temporary file
+ * first. The message is sent when the upload is complete.
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+final class Uploader implements Runnable {
+    private final static Logger LOGGER = Logger.getLogger(Uploader.class.getName());
+
+    private final static String ENCRYPTED_MIME_TYPE = "application/octet-stream";
+
+    private final ControlCenter mControl;
+    private final Client mClient;
+
+    private final LinkedBlockingQueue<OutMessage> mQueue = new LinkedBlockingQueue<>();
+    /** IDs of waiting and running uploads, a message is queued only once. */
+    private final Set<Integer> mQueued = Collections.synchronizedSet(new HashSet<Integer>());
+
+    Uploader(ControlCenter control, Client client) {
+        mControl = control;
+        mClient = client;
+    }
+
+    void queueUpload(OutMessage message) {
+        if (!mQueued.add(message.getID())) {
+            LOGGER.info("upload already queued, message id: "+message.getID());
+            return;
+        }
+        boolean added = mQueue.offer(message);
+        if (!added) {
+            LOGGER.warning("can't add message to upload queue");
+            mQueued.remove(message.getID());
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            OutMessage message;
+            try {
+                // blocking
+                message = mQueue.take();
+            } catch (InterruptedException ex) {
+                LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
+                return;
+            }
+            boolean success = false;
+            try {
+                success = this.upload(message);
+            } finally {
+                mQueued.remove(message.getID());
+            }
+            if (success) {
+                mClient.sendMessage(message);
+            } else if (mControl.getCurrentStatus() != ControlCenter.Status.CONNECTED) {
+                // still pending, uploaded again after connecting
+                LOGGER.info("upload failed while not connected");
+                message.setAttachmentUploadProgress(-1, -1, -1);
+            } else {
+                message.setAttachmentUploadProgress(-3, -1, -1);
+                message.setStatus(Status.ERROR);
+            }
+        }
+    }
+
+    /**
+     * Encrypt (if needed) and upload the attachment of a message.
+     * @return true if the attachment was uploaded
+     */
+    private boolean upload(final OutMessage message) {
+        Optional<Attachment> optAttachment = message.getContent().getAttachment();
+        if (!optAttachment.isPresent()) {
+            LOGGER.warning("no attachment in message");
+            return false;
+        }
+        Attachment attachment = optAttachment.get();
+        if (!attachment.getURL().isEmpty()) {
+            LOGGER.info("attachment already uploaded");
+            return true;
+        }
+
+        Downloader downloader = Downloader.getInstance();
+        File file = new File(downloader.getBaseDir(), attachment.getFileName());
+        String mimeType = attachment.getMimeType();
+        boolean encrypted =
+                attachment.getCoderStatus().getEncryption() != Coder.Encryption.NOT;
+        if (encrypted) {
+            try {
+                file = File.createTempFile(".upload", ".tmp", downloader.getBaseDir());
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "can't create temporary file", ex);
+                return false;
+            }
+            boolean success = Coder.processOutAttachment(message, file);
+            if (!success) {
+                file.delete();
+                mControl.handleSecurityErrors(message);
+                return false;
+            }
+            // don't reveal the type of the content
+            mimeType = ENCRYPTED_MIME_TYPE;
+        }
+
+        try {
+            // the server needs the size of the (encrypted) file
+            Optional<HTTPFileUpload.Slot> optSlot = mClient.requestUploadSlot(
+                    file.getName(), file.length(), mimeType);
+            if (!optSlot.isPresent())
+                return false;
+
+            Optional<DownloadClient> optClient = downloader.takeClient();
+            if (!optClient.isPresent())
+                return false;
+            DownloadClient.ProgressListener listener = new DownloadClient.ProgressListener() {
+                @Override
+                public void updateProgress(int p, long rate, long eta) {
+                    message.setAttachmentUploadProgress(p, rate, eta);
+                }
+            };
+            boolean uploaded;
+            try {
+                uploaded = optClient.get().upload(file,
+                        optSlot.get().getPutURL(),
+                        mimeType,
+                        listener);
+            } finally {
+                downloader.releaseClient(optClient.get());
+            }
+            if (!uploaded)
+                return false;
+
+            message.setAttachmentURL(optSlot.get().getGetURL());
+            return true;
+        } finally {
+            if (encrypted && !file.delete())
+                LOGGER.warning("can't delete encrypted file: "+file.getAbsolutePath());
+        }
+    }
+}
@@ -38,11 +38,14 @@ import java.util.logging.Logger;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
+import org.bouncycastle.openpgp.PGPException;
 import org.kontalk.Kontalk;
 import org.kontalk.crypto.PGPUtils;
+import org.kontalk.crypto.PersonalKey;
 
 /**
  * Utilities for SASL certificate validation.
@@ -53,9 +56,55 @@ public class TrustUtils {
 
     private final static String TRUSSTORE_FILE = "truststore.bks";
 
+    /** Number of TLS sessions kept for resumption. */
+    private final static int SESSION_CACHE_SIZE = 50;
+    /** Lifetime of cached TLS sessions in seconds. */
+    private final static int SESSION_TIMEOUT = 60 * 60;
+
     private static TrustManager BLIND_TM = null;
     private static KeyStore MERGED_TS = null;
 
+    /** The cached SSL context and what it was created for. */
+    private static SSLContext CACHED_CONTEXT = null;
+    private static PersonalKey CACHED_KEY = null;
+    private static boolean CACHED_VALIDATION = false;
+
+    /**
+     * Get the shared SSL context for the personal key.
+     * The context is created once for each key and validation setting and
+     * reused for the XMPP connection and all downloads; its session cache
+     * allows abbreviated handshakes for repeated connections to a server.
+     */
+    public static synchronized SSLContext getCustomSSLContext(
+            PersonalKey key,
+            boolean validateCertificate)
+            throws KeyStoreException,
+            IOException,
+            NoSuchAlgorithmException,
+            CertificateException,
+            UnrecoverableKeyException,
+            NoSuchProviderException,
+            KeyManagementException,
+            PGPException {
+        if (CACHED_CONTEXT != null &&
+                CACHED_KEY == key &&
+                CACHED_VALIDATION == validateCertificate)
+            return CACHED_CONTEXT;
+
+        LOGGER.info("creating SSL context");
+        SSLContext ctx = getCustomSSLContext(key.getBridgePrivateKey(),
+                key.getBridgeCertificate(),
+                validateCertificate);
+        SSLSessionContext sessions = ctx.getClientSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT);
+
+        CACHED_CONTEXT = ctx;
+        CACHED_KEY = key;
+        CACHED_VALIDATION = validateCertificate;
+        return ctx;
+    }
+
     /**
      * Get a custom SSL context for secure server connections. The key store of
      * the context contains the private key and bridge certificate. The trust
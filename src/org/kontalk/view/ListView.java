@@ -28,8 +28,11 @@ import com.alee.managers.tooltip.WebCustomTooltip;
 import java.awt.Component;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.Collection;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.JList;
 import javax.swing.SwingUtilities;
 import javax.swing.event.ListDataEvent;
@@ -45,7 +48,7 @@ import org.ocpsoft.prettytime.PrettyTime;
  */
 abstract class ListView<I extends ListView<I, V>.ListItem, V> extends WebList implements Observer {
 
-    private final WebListModel<I> mListModel = new WebListModel<>();
+    private final ItemListModel<I> mListModel = new ItemListModel<>();
 
     private final WebListModel<I> mFilteredListModel = new WebListModel<>();
 
@@ -53,6 +56,8 @@ abstract class ListView<I extends ListView<I, V>.ListItem, V> extends WebList im
 
     private WebCustomTooltip mTip = null;
 
+    private final AtomicBoolean mUpdatePending = new AtomicBoolean(false);
+
     // using legacy lib, raw types extend Object
     @SuppressWarnings("unchecked")
     ListView() {
@@ -108,6 +113,23 @@ abstract class ListView<I extends ListView<I, V>.ListItem, V> extends WebList im
         mListModel.addElement(newItem);
     }
 
+    /**
+     * Replace all items with the given items, in this order. The filtering
+     * is reset only once.
+     */
+    protected void setItems(Collection<I> items) {
+        mListModel.replaceAll(items);
+    }
+
+    protected List<I> getItems() {
+        return mListModel.getElements();
+    }
+
+    /** The content of the items between the indices (inclusive) changed. */
+    protected void itemsChanged(int first, int last) {
+        mListModel.contentsChanged(first, last);
+    }
+
     void filter(String search) {
         mFilteredListModel.clear();
         for (I listItem : mListModel.getElements()) {
@@ -136,9 +158,13 @@ abstract class ListView<I extends ListView<I, V>.ListItem, V> extends WebList im
             this.updateOnEDT();
             return;
         }
+        // updates are not incremental, one pending update is enough
+        if (!mUpdatePending.compareAndSet(false, true))
+            return;
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
+                mUpdatePending.set(false);
                 ListView.this.updateOnEDT();
             }
         });
@@ -161,6 +187,21 @@ abstract class ListView<I extends ListView<I, V>.ListItem, V> extends WebList im
         mTip = tip;
     }
 
+    /** List model that can tell about changed item content. */
+    private static final class ItemListModel<T> extends WebListModel<T> {
+        void contentsChanged(int first, int last) {
+            this.fireContentsChanged(this, first, last);
+        }
+
+        /** Replace all elements with one event. */
+        void replaceAll(Collection<T> elements) {
+            int last = Math.max(delegate.size(), elements.size()) - 1;
+            delegate.clear();
+            delegate.addAll(elements);
+            this.fireContentsChanged(this, 0, last);
+        }
+    }
+
     abstract class ListItem extends WebPanel {
 
         protected final V mValue;
@@ -94,7 +94,7 @@ final class MainFrame extends WebFrame {
             final ListView<?, ?> threadList,
             Component threadView,
             Component sendTextField,
-            Component sendButton,
+            Component sendButtons,
             Component statusBar) {
 
         // general view + behaviour
@@ -247,7 +247,7 @@ final class MainFrame extends WebFrame {
         WebPanel bottomPanel = new WebPanel();
         WebScrollPane textFieldScrollPane = new ScrollPane(sendTextField);
         bottomPanel.add(textFieldScrollPane, BorderLayout.CENTER);
-        bottomPanel.add(sendButton, BorderLayout.EAST);
+        bottomPanel.add(sendButtons, BorderLayout.EAST);
         bottomPanel.setMinimumSize(new Dimension(0, 32));
         WebSplitPane splitPane = new WebSplitPane(VERTICAL_SPLIT, threadView, bottomPanel);
         splitPane.setResizeWeight(1.0);
@@ -296,6 +296,11 @@ final class MainFrame extends WebFrame {
                 mConnectMenuItem.setEnabled(true);
                 mDisconnectMenuItem.setEnabled(false);
             break;
+            case RECONNECTING:
+                // connect now or stop reconnecting
+                mConnectMenuItem.setEnabled(true);
+                mDisconnectMenuItem.setEnabled(true);
+            break;
         }
     }
 
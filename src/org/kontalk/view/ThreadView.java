@@ -65,6 +65,7 @@ import javax.swing.ImageIcon;
 import javax.swing.JViewport;
 import javax.swing.ScrollPaneConstants;
 import javax.swing.SwingUtilities;
+import org.apache.commons.io.FileUtils;
 import org.kontalk.system.Downloader;
 import org.kontalk.crypto.Coder;
 import org.kontalk.model.InMessage;
@@ -72,6 +73,7 @@ import org.kontalk.model.KonMessage;
 import org.kontalk.model.KonThread;
 import org.kontalk.model.MessageContent.Attachment;
 import org.kontalk.system.KonConf;
+import org.kontalk.util.Tr;
 
 /**
  * Pane that shows the currently selected thread.
@@ -480,10 +482,13 @@ final class ThreadView extends WebScrollPane {
                     String base = Downloader.getInstance().getAttachmentDir();
                     String fName = optAttachment.get().getFileName();
                     Path path = Paths.get(base, fName);
+                    boolean uploading = mMessage.getDir() == KonMessage.Direction.OUT &&
+                            optAttachment.get().getURL().isEmpty();
 
                     // rely on mime type in message
                     if (!optAttachment.get().getFileName().isEmpty() &&
-                            optAttachment.get().getMimeType().startsWith("image")) {
+                            optAttachment.get().getMimeType().startsWith("image") &&
+                            !uploading) {
                         // file should be present and should be an image, show it
                         BufferedImage image = readImage(path.toString());
                         double scale = Math.min(
@@ -502,7 +507,7 @@ final class ThreadView extends WebScrollPane {
                         // show a link to the file
                         WebLabel attLabel;
                         if (optAttachment.get().getFileName().isEmpty()) {
-                            attLabel = new WebLabel("?");
+                            attLabel = new WebLabel(progressText(optAttachment.get(), false));
                         } else {
                             WebLinkLabel linkLabel = new WebLinkLabel();
                             linkLabel.setLink(fName, linkRunnable(path));
@@ -511,6 +516,8 @@ final class ThreadView extends WebScrollPane {
                         WebLabel labelLabel = new WebLabel("Attachment: ");
                         labelLabel.setItalicFont();
                         GroupPanel attachmentPanel = new GroupPanel(4, true, labelLabel, attLabel);
+                        if (uploading && optAttachment.get().getTransferProgress() != -1)
+                            attachmentPanel.add(new WebLabel(progressText(optAttachment.get(), true)));
                         mContentPanel.add(attachmentPanel, BorderLayout.SOUTH);
                     }
                 }
@@ -636,6 +643,22 @@ final class ThreadView extends WebScrollPane {
         return new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
     }
 
+    private static String progressText(Attachment attachment, boolean upload) {
+        int p = attachment.getTransferProgress();
+        switch (p) {
+            case -1: return "?";
+            case -2: return upload ? Tr.tr("uploading...") : Tr.tr("downloading...");
+            case -3: return upload ? Tr.tr("upload failed") : Tr.tr("download failed");
+        }
+        String text = p + "%";
+        long rate = attachment.getTransferRate();
+        long eta = attachment.getTransferETA();
+        if (rate >= 0 && eta >= 0)
+            text += " (" + FileUtils.byteCountToDisplaySize(rate) + "/s, " +
+                    eta + " s " + Tr.tr("left") + ")";
+        return text;
+    }
+
     private static String getFromString(KonMessage message) {
         String from;
         if (!message.getUser().getName().isEmpty()) {
@@ -39,7 +39,12 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Observer;
 import java.util.Set;
 import javax.swing.ListSelectionModel;
@@ -57,6 +62,7 @@ final class UserListView extends ListView<UserItem, User> implements Observer {
     private final View mView;
     private final UserList mUserList;
     private final UserPopupMenu mPopupMenu;
+    private final Map<User, UserItem> mItems = new HashMap<>();
 
     private WebCustomTooltip mTip = null;
 
@@ -109,11 +115,46 @@ final class UserListView extends ListView<UserItem, User> implements Observer {
 
     @Override
     protected void updateOnEDT() {
-        // TODO performance
-        this.clearModel();
-        for (User oneUser: mUserList.getAll()) {
-            this.addItem(new UserItem(oneUser));
+        // only add and remove items for changed users, update the others
+        List<User> users = new ArrayList<>(mUserList.getAll());
+        Set<User> userSet = new HashSet<>(users);
+        Iterator<User> iter = mItems.keySet().iterator();
+        while (iter.hasNext()) {
+            if (!userSet.contains(iter.next()))
+                iter.remove();
         }
+
+        // items in the order of the user list
+        List<UserItem> items = new ArrayList<>(users.size());
+        List<UserItem> kept = new ArrayList<>(users.size());
+        boolean added = false;
+        int firstChanged = -1, lastChanged = -1;
+        for (User user : users) {
+            UserItem item = mItems.get(user);
+            if (item == null) {
+                item = new UserItem(user);
+                mItems.put(user, item);
+                added = true;
+            } else {
+                kept.add(item);
+                if (item.update()) {
+                    if (firstChanged == -1)
+                        firstChanged = items.size();
+                    lastChanged = items.size();
+                }
+            }
+            items.add(item);
+        }
+
+        if (added || !this.getItems().equals(kept)) {
+            // items added, removed or the order changed, one update for all
+            this.setItems(items);
+            this.repaint();
+            return;
+        }
+        if (firstChanged != -1)
+            this.itemsChanged(firstChanged, lastChanged);
+        this.repaint();
     }
 
     private void showPopupMenu(MouseEvent e) {
@@ -128,7 +169,7 @@ final class UserListView extends ListView<UserItem, User> implements Observer {
 
         private final WebLabel mNameLabel;
         private final WebLabel mJIDLabel;
-        private final Color mBackround;
+        private Color mBackround;
 
         UserItem(User user) {
             super(user);
@@ -160,12 +201,23 @@ final class UserListView extends ListView<UserItem, User> implements Observer {
             mNameLabel.setMinimumSize(size);
             mNameLabel.setPreferredSize(size);
 
+            this.update();
+        }
+
+        /** Update the shown user data, return true if something changed. */
+        private boolean update() {
             String name = !mValue.getName().isEmpty() ? mValue.getName() : "<unknown>";
+            Color background = mValue.getAvailable() == User.Available.YES ? View.LIGHT_BLUE : Color.WHITE;
+            if (name.equals(mNameLabel.getText()) &&
+                    mValue.getJID().equals(mJIDLabel.getText()) &&
+                    background.equals(mBackround))
+                return false;
+
             mNameLabel.setText(name);
             mJIDLabel.setText(mValue.getJID());
-
-            mBackround = mValue.getAvailable() == User.Available.YES ? View.LIGHT_BLUE : Color.WHITE;
+            mBackround = background;
             this.setBackground(mBackround);
+            return true;
         }
 
         @Override
@@ -18,10 +18,12 @@
 
 package org.kontalk.view;
 
+import com.alee.extended.panel.GroupPanel;
 import com.alee.extended.statusbar.WebStatusBar;
 import com.alee.extended.statusbar.WebStatusLabel;
 import com.alee.laf.WebLookAndFeel;
 import com.alee.laf.button.WebButton;
+import com.alee.laf.filechooser.WebFileChooser;
 import com.alee.laf.menu.WebMenuItem;
 import com.alee.laf.menu.WebPopupMenu;
 import com.alee.laf.optionpane.WebOptionPane;
@@ -46,6 +48,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.security.cert.CertificateException;
@@ -135,6 +138,16 @@ public final class View implements Observer {
             }
         });
 
+        // attach button
+        WebButton attachButton = new WebButton(Tr.tr("File"));
+        TooltipManager.addTooltip(attachButton, Tr.tr("Send File"));
+        attachButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                View.this.callSendFile();
+            }
+        });
+
         // status bar
         WebStatusBar statusBar = new WebStatusBar();
         mStatusBarLabel = new WebStatusLabel(" ");
@@ -142,7 +155,8 @@ public final class View implements Observer {
 
         // main frame
         mMainFrame = new MainFrame(this, mUserListView, mThreadListView,
-                mThreadView, mSendTextArea, mSendButton, statusBar);
+                mThreadView, mSendTextArea,
+                new GroupPanel(2, true, attachButton, mSendButton), statusBar);
         mMainFrame.setVisible(true);
 
         // tray
@@ -315,6 +329,9 @@ public final class View implements Observer {
        } else if (arg instanceof ViewEvent.SecurityError) {
            ViewEvent.SecurityError error = (ViewEvent.SecurityError) arg;
            this.handleSecurityErrors(error.message);
+       } else if (arg instanceof ViewEvent.DecryptionProgress) {
+           ViewEvent.DecryptionProgress progress = (ViewEvent.DecryptionProgress) arg;
+           this.decryptionProgress(progress);
        } else {
            LOGGER.warning("unexpected argument");
        }
@@ -353,11 +370,24 @@ public final class View implements Observer {
                 mThreadView.setColor(Color.lightGray);
                 mStatusBarLabel.setText(Tr.tr("Connection error"));
                 break;
+            case RECONNECTING:
+                mThreadView.setColor(Color.lightGray);
+                mStatusBarLabel.setText(Tr.tr("Reconnecting..."));
+                break;
             }
 
         mMainFrame.statusChanged(status);
     }
 
+    private void decryptionProgress(ViewEvent.DecryptionProgress progress) {
+        if (progress.done >= progress.total) {
+            this.statusChanged();
+            return;
+        }
+        mStatusBarLabel.setText(Tr.tr("Decrypting messages")+" ("
+                + progress.done + "/" + progress.total + ")...");
+    }
+
     void showImportWizard(boolean connect) {
         JDialog importFrame = new ImportDialog(this, connect);
         importFrame.setVisible(true);
@@ -434,6 +464,18 @@ public final class View implements Observer {
        mSendTextArea.setText("");
     }
 
+    private void callSendFile() {
+        KonThread thread = mThreadListView.getSelectedListValue();
+        if (thread == null) {
+            // nothing selected
+            return;
+        }
+        File file = WebFileChooser.showOpenDialog(mMainFrame, Tr.tr("Send File"));
+        if (file == null)
+            return;
+        mControl.sendAttachment(thread, file.toPath());
+    }
+
     void callSetUserBlocking(User user, boolean blocking) {
         mControl.sendUserBlocking(user, blocking);
     }
@@ -462,6 +504,7 @@ public final class View implements Observer {
             return;
 
         mThreadView.showThread(thread);
+        mControl.setCurrentThread(thread);
     }
 
     Optional<KonThread> getCurrentShownThread() {